@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput;
+
+import android.util.Pair;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the program fingerprint helpers in {@link TvContractUtils}.
+ */
+public class TvContractUtilsTest extends TestCase {
+    private static final String VIDEO_INFO =
+            TvContractUtils.convertVideoInfoToInternalProviderData(0, "http://example.com/a,b");
+
+    public void testProgramFingerprintRoundTrip() {
+        long[] fingerprints = {0L, 1L, -1L, 0xcbf29ce484222325L, Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long fingerprint : fingerprints) {
+            String internalData = TvContractUtils.setProgramFingerprint(VIDEO_INFO, fingerprint);
+            assertEquals(Long.valueOf(fingerprint),
+                    TvContractUtils.getProgramFingerprint(internalData));
+            assertEquals(VIDEO_INFO, TvContractUtils.stripProgramFingerprint(internalData));
+        }
+    }
+
+    public void testSetProgramFingerprintReplacesOldOne() {
+        String internalData = TvContractUtils.setProgramFingerprint(
+                TvContractUtils.setProgramFingerprint(VIDEO_INFO, 0xcbf29ce484222325L), 42L);
+        assertEquals(Long.valueOf(42L), TvContractUtils.getProgramFingerprint(internalData));
+        assertEquals(VIDEO_INFO, TvContractUtils.stripProgramFingerprint(internalData));
+    }
+
+    public void testProgramWithoutFingerprint() {
+        assertNull(TvContractUtils.getProgramFingerprint(VIDEO_INFO));
+        assertNull(TvContractUtils.getProgramFingerprint(null));
+        assertEquals(VIDEO_INFO, TvContractUtils.stripProgramFingerprint(VIDEO_INFO));
+    }
+
+    public void testParseFingerprintedInternalProviderData() {
+        Pair<Integer, String> videoInfo = TvContractUtils.parseProgramInternalProviderData(
+                TvContractUtils.setProgramFingerprint(VIDEO_INFO, -1L));
+        assertEquals(Integer.valueOf(0), videoInfo.first);
+        assertEquals("http://example.com/a,b", videoInfo.second);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.player;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link MulticastTsDataSource}. The TS packets are sent to a multicast group and looped
+ * back on the local host.
+ */
+public class MulticastTsDataSourceTest extends TestCase {
+    private static final String GROUP = "239.255.0.1";
+    private static final int PID = 0x100;
+    private static final int MARKER_PID = 0x101;
+    private static final int PACKET_SIZE = MulticastTsDataSource.TS_PACKET_SIZE;
+
+    private MulticastTsDataSource mDataSource;
+    private MulticastSocket mSender;
+    private InetAddress mGroup;
+    private int mPort;
+    private ByteArrayOutputStream mExpected;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            mPort = socket.getLocalPort();
+        }
+        mGroup = InetAddress.getByName(GROUP);
+        mSender = new MulticastSocket();
+        // Keep the packets on this host, and deliver them back to it.
+        mSender.setTimeToLive(0);
+        mSender.setLoopbackMode(false);
+        mDataSource = new MulticastTsDataSource(1024, 1);
+        mExpected = new ByteArrayOutputStream();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDataSource.close();
+        mSender.close();
+        super.tearDown();
+    }
+
+    public void testOpenWithoutPort() {
+        try {
+            mDataSource.open(new DataSpec(Uri.parse("udp://" + GROUP)));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testReceivePackets() throws IOException {
+        open();
+
+        // Realigned past a 12-byte header, e.g. RTP.
+        byte[] packets = new byte[0];
+        for (int i = 0; i <= 6; ++i) {
+            packets = concat(packets, expect(packet(PID, i, i)));
+        }
+        send(concat(header(12), packets));
+
+        // A duplicate of the last packet, then the next one.
+        send(concat(packet(PID, 6, 6), expect(packet(PID, 7, 7))));
+
+        // Reordered: 9 is kept as a loss, and 8 dropped as late.
+        send(expect(packet(PID, 9, 9)));
+        send(packet(PID, 8, 8));
+
+        // A gap in the continuity counter.
+        send(concat(expect(packet(PID, 13, 13)), expect(packet(PID, 14, 14))));
+
+        // A trailing partial packet.
+        send(concat(expect(packet(PID, 15, 15)), header(100)));
+
+        // Sync lost in the middle of a datagram, and found again a packet later.
+        send(concat(concat(expect(concat(packet(PID, 0, 16), packet(PID, 1, 17))),
+                new byte[PACKET_SIZE]), expect(packet(PID, 2, 18))));
+
+        sendMarker();
+        assertRead();
+        assertEquals(7 + 1 + 1 + 2 + 1 + 3 + 1, mDataSource.getReceivedPacketCount());
+        assertEquals(2, mDataSource.getLatePacketCount());
+        assertEquals(2, mDataSource.getDroppedPacketCount());
+    }
+
+    public void testLossOfSixteenPacketsIsNotDuplicate() throws IOException {
+        open();
+        send(expect(packet(PID, 3, 0)));
+        // The same counter with another payload, i.e. a whole cycle of the counter went missing.
+        send(expect(packet(PID, 3, 1)));
+        send(packet(PID, 3, 1));
+
+        sendMarker();
+        assertRead();
+        assertEquals(1, mDataSource.getLatePacketCount());
+    }
+
+    public void testDiscontinuityResetsCounter() throws IOException {
+        open();
+        send(expect(packet(PID, 5, 0)));
+        // Would be late without the discontinuity indicator.
+        byte[] packet = packet(PID, 4, 1);
+        packet[3] |= 0x20;  // Adaptation field and payload.
+        packet[4] = 1;  // Adaptation field length.
+        packet[5] = (byte) 0x80;  // Discontinuity indicator.
+        send(expect(packet));
+        send(expect(packet(PID, 5, 2)));
+
+        sendMarker();
+        assertRead();
+        assertEquals(0, mDataSource.getLatePacketCount());
+    }
+
+    private void open() throws IOException {
+        mDataSource.open(new DataSpec(Uri.parse("udp://" + GROUP + ":" + mPort)));
+    }
+
+    private void send(byte[] datagram) throws IOException {
+        mSender.send(new DatagramPacket(datagram, datagram.length, mGroup, mPort));
+    }
+
+    /**
+     * Sends a packet of another PID last. The datagrams are handled in order, so once the marker
+     * has been read, all the packets before it have been counted.
+     */
+    private void sendMarker() throws IOException {
+        send(expect(packet(MARKER_PID, 0, 0xff)));
+    }
+
+    private byte[] expect(byte[] packets) {
+        mExpected.write(packets, 0, packets.length);
+        return packets;
+    }
+
+    private void assertRead() throws IOException {
+        byte[] expected = mExpected.toByteArray();
+        byte[] actual = new byte[expected.length];
+        int offset = 0;
+        while (offset < actual.length) {
+            int len = mDataSource.read(actual, offset, actual.length - offset);
+            assertTrue(len > 0);
+            offset += len;
+        }
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    /**
+     * Returns a TS packet with a payload only, filled with {@code fill}.
+     */
+    private static byte[] packet(int pid, int continuityCounter, int fill) {
+        byte[] packet = new byte[PACKET_SIZE];
+        Arrays.fill(packet, (byte) fill);
+        packet[0] = 0x47;
+        packet[1] = (byte) (pid >> 8);
+        packet[2] = (byte) pid;
+        packet[3] = (byte) (0x10 | continuityCounter);
+        return packet;
+    }
+
+    /**
+     * Returns bytes which contain no sync byte.
+     */
+    private static byte[] header(int length) {
+        byte[] header = new byte[length];
+        Arrays.fill(header, (byte) 0x80);
+        return header;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
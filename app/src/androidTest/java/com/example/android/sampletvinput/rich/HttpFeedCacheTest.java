@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.rich;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for {@link HttpFeedCache} against a local HTTP server.
+ */
+public class HttpFeedCacheTest extends TestCase {
+    private static final int TIMEOUT_MS = 5000;
+    private static final String BODY = "<tv><channel id=\"1\"/></tv>";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private LocalHttpServer mServer;
+    private File mDirectory;
+    private HttpFeedCache mCache;
+    private URL mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer();
+        mDirectory = File.createTempFile("feed", "");
+        assertTrue(mDirectory.delete());
+        mCache = new HttpFeedCache(mDirectory, TIMEOUT_MS, TIMEOUT_MS);
+        mUrl = mServer.getUrl("/feed.xml");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testETagRevalidation() throws IOException {
+        mServer.enqueue(new MockResponse(200, BODY).setHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse(304, ""));
+
+        HttpFeedCache.Response response = mCache.fetch(mUrl);
+        assertFalse(response.isFromCache());
+        assertEquals("etag:\"v1\"", response.getTag());
+        assertEquals(BODY, readFully(response));
+        assertNull(mServer.takeRequest().get("if-none-match"));
+
+        response = mCache.fetch(mUrl);
+        assertTrue(response.isFromCache());
+        assertEquals("etag:\"v1\"", response.getTag());
+        assertEquals(BODY, readFully(response));
+        assertEquals("\"v1\"", mServer.takeRequest().get("if-none-match"));
+    }
+
+    public void testLastModifiedRevalidation() throws IOException {
+        mServer.enqueue(new MockResponse(200, BODY).setHeader("Last-Modified", LAST_MODIFIED));
+        mServer.enqueue(new MockResponse(304, ""));
+
+        assertEquals(BODY, readFully(mCache.fetch(mUrl)));
+        assertNull(mServer.takeRequest().get("if-modified-since"));
+
+        HttpFeedCache.Response response = mCache.fetch(mUrl);
+        assertTrue(response.isFromCache());
+        assertEquals("last-modified:" + LAST_MODIFIED, response.getTag());
+        assertEquals(BODY, readFully(response));
+        assertEquals(LAST_MODIFIED, mServer.takeRequest().get("if-modified-since"));
+    }
+
+    public void testChangedBodyReplacesCache() throws IOException {
+        mServer.enqueue(new MockResponse(200, BODY).setHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse(200, "<tv/>").setHeader("ETag", "\"v2\""));
+        mServer.enqueue(new MockResponse(304, ""));
+
+        assertEquals(BODY, readFully(mCache.fetch(mUrl)));
+        assertEquals("<tv/>", readFully(mCache.fetch(mUrl)));
+        HttpFeedCache.Response response = mCache.fetch(mUrl);
+        assertEquals("etag:\"v2\"", response.getTag());
+        assertEquals("<tv/>", readFully(response));
+        mServer.takeRequest();
+        mServer.takeRequest();
+        assertEquals("\"v2\"", mServer.takeRequest().get("if-none-match"));
+    }
+
+    public void testGzipBody() throws IOException {
+        mServer.enqueue(new MockResponse(200, gzip(BODY))
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Content-Encoding", "gzip"));
+        mServer.enqueue(new MockResponse(304, ""));
+
+        assertEquals(BODY, readFully(mCache.fetch(mUrl)));
+        assertEquals("gzip", mServer.takeRequest().get("accept-encoding"));
+        // The body is cached decoded.
+        assertEquals(BODY, readFully(mCache.fetch(mUrl)));
+    }
+
+    public void testServerErrorServesStaleBody() throws IOException {
+        mServer.enqueue(new MockResponse(200, BODY).setHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse(503, "Unavailable"));
+
+        assertEquals(BODY, readFully(mCache.fetch(mUrl)));
+        HttpFeedCache.Response response = mCache.fetch(mUrl);
+        assertTrue(response.isFromCache());
+        assertEquals("etag:\"v1\"", response.getTag());
+        assertEquals(BODY, readFully(response));
+    }
+
+    public void testConnectionFailureServesStaleBody() throws IOException {
+        mServer.enqueue(new MockResponse(200, BODY).setHeader("ETag", "\"v1\""));
+
+        assertEquals(BODY, readFully(mCache.fetch(mUrl)));
+        mServer.close();
+        HttpFeedCache.Response response = mCache.fetch(mUrl);
+        assertTrue(response.isFromCache());
+        assertEquals(BODY, readFully(response));
+    }
+
+    public void testServerErrorWithoutCacheFails() throws IOException {
+        mServer.enqueue(new MockResponse(500, "Error"));
+        try {
+            mCache.fetch(mUrl);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testTruncatedBodyIsNotCached() throws IOException {
+        mServer.enqueue(new MockResponse(200, BODY).setHeader("ETag", "\"v1\"").truncate());
+        mServer.enqueue(new MockResponse(200, BODY).setHeader("ETag", "\"v1\""));
+
+        HttpFeedCache.Response response = mCache.fetch(mUrl);
+        try {
+            readFully(response);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertNoCachedBody();
+
+        // The next fetch doesn't revalidate the partial body.
+        assertEquals(BODY, readFully(mCache.fetch(mUrl)));
+        mServer.takeRequest();
+        assertNull(mServer.takeRequest().get("if-none-match"));
+    }
+
+    public void testBodyClosedEarlyIsNotCached() throws IOException {
+        // Larger than what may be drained on close.
+        char[] chars = new char[256 * 1024];
+        Arrays.fill(chars, 'x');
+        mServer.enqueue(new MockResponse(200, new String(chars)).setHeader("ETag", "\"v1\""));
+
+        HttpFeedCache.Response response = mCache.fetch(mUrl);
+        assertEquals('x', response.getInputStream().read());
+        response.close();
+        assertNoCachedBody();
+    }
+
+    private void assertNoCachedBody() {
+        String[] names = mDirectory.list();
+        assertNotNull(names);
+        for (String name : names) {
+            assertFalse(name, name.endsWith(".body") || name.endsWith(".tmp"));
+        }
+    }
+
+    private static String readFully(HttpFeedCache.Response response) throws IOException {
+        try {
+            InputStream inputStream = response.getInputStream();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4 * 1024];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, len);
+            }
+            return outputStream.toString("UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(text.getBytes("UTF-8"));
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * A canned HTTP response.
+     */
+    private static final class MockResponse {
+        private final int mCode;
+        private final byte[] mBody;
+        private final Map<String, String> mHeaders = new HashMap<>();
+        private boolean mTruncate;
+
+        MockResponse(int code, String body) throws IOException {
+            this(code, body.getBytes("UTF-8"));
+        }
+
+        MockResponse(int code, byte[] body) {
+            mCode = code;
+            mBody = body;
+        }
+
+        MockResponse setHeader(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * Makes the server drop the connection halfway through the body.
+         */
+        MockResponse truncate() {
+            mTruncate = true;
+            return this;
+        }
+    }
+
+    /**
+     * A minimal HTTP/1.1 server on the loopback interface, which answers each connection with the
+     * next enqueued response and records the request headers, with lower-case names.
+     */
+    private static final class LocalHttpServer implements Runnable {
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+        private final LinkedList<MockResponse> mResponses = new LinkedList<>();
+        private final List<Map<String, String>> mRequests = new ArrayList<>();
+
+        LocalHttpServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mThread = new Thread(this, "LocalHttpServer");
+            mThread.start();
+        }
+
+        URL getUrl(String path) throws IOException {
+            return new URL("http://127.0.0.1:" + mServerSocket.getLocalPort() + path);
+        }
+
+        synchronized void enqueue(MockResponse response) {
+            mResponses.add(response);
+        }
+
+        /**
+         * Returns the headers of the oldest request which hasn't been taken yet.
+         */
+        synchronized Map<String, String> takeRequest() {
+            assertFalse(mRequests.isEmpty());
+            return mRequests.remove(0);
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+            try {
+                mThread.join(TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try (Socket socket = mServerSocket.accept()) {
+                    socket.setSoTimeout(TIMEOUT_MS);
+                    serve(socket);
+                } catch (IOException e) {
+                    if (mServerSocket.isClosed()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            if (reader.readLine() == null) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            MockResponse response;
+            synchronized (this) {
+                mRequests.add(headers);
+                response = mResponses.poll();
+            }
+            if (response == null) {
+                response = new MockResponse(404, new byte[0]);
+            }
+
+            byte[] body = response.mBody;
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(response.mCode).append(" Status\r\n");
+            for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue())
+                        .append("\r\n");
+            }
+            if (response.mCode != 304) {
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("Connection: close\r\n\r\n");
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(head.toString().getBytes("ISO-8859-1"));
+            outputStream.write(body, 0, response.mTruncate ? body.length / 2 : body.length);
+            outputStream.flush();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads channel logos into the TvProvider on a small dedicated thread pool.
+ *
+ * <p>Each distinct URL is downloaded once per batch, no matter how many channels share it. The
+ * bodies are kept in a disk cache named after the SHA-1 hash of their content, so identical logos
+ * behind different URLs are stored once, and the ETag and Last-Modified headers of each URL are
+ * sent back on the next download to revalidate it. The hash of the logo last written to each
+ * channel is remembered as well, in a single record shared by all the downloads of the process,
+ * and a logo is only written again when its hash changes.
+ */
+class LogoDownloader {
+    private static final String TAG = "LogoDownloader";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    private static final int CONNECT_TIMEOUT_MS = 3000;  // 3 sec
+    private static final int READ_TIMEOUT_MS = 10000;  // 10 sec
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CACHE_DIR_NAME = "logos";
+    private static final String WRITTEN_FILE_NAME = "written.properties";
+    private static final String BODY_SUFFIX = ".logo";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last-modified";
+    private static final String META_HASH = "hash";
+
+    private static final ThreadPoolExecutor sExecutor;
+    private static final Object sWrittenLock = new Object();
+    // Maps channel logo URIs to the hash of the logo last written to them. Loaded on first use,
+    // and guarded by sWrittenLock.
+    private static Properties sWritten;
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    static {
+        sExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_DOWNLOADS, MAX_CONCURRENT_DOWNLOADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private LogoDownloader() {
+    }
+
+    /**
+     * Downloads the logos in the background and writes them to the given channel logo URIs.
+     *
+     * @param logos A map from channel logo URIs to the URLs of their logos.
+     */
+    static void download(Context context, Map<Uri, String> logos) {
+        Map<String, List<Uri>> logosByUrl = new HashMap<>();
+        for (Map.Entry<Uri, String> entry : logos.entrySet()) {
+            List<Uri> logoUris = logosByUrl.get(entry.getValue());
+            if (logoUris == null) {
+                logoUris = new ArrayList<>();
+                logosByUrl.put(entry.getValue(), logoUris);
+            }
+            logoUris.add(entry.getKey());
+        }
+        final Batch batch = new Batch(context, logosByUrl.size());
+        for (final Map.Entry<String, List<Uri>> entry : logosByUrl.entrySet()) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        batch.download(entry.getKey(), entry.getValue());
+                    } finally {
+                        batch.onDownloadFinished();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the record of the written logos. The caller must hold {@code sWrittenLock}.
+     */
+    private static Properties getWritten(File file) {
+        if (sWritten == null) {
+            sWritten = readProperties(file);
+        }
+        return sWritten;
+    }
+
+    /**
+     * The logos of one call to {@link #download}.
+     */
+    private static class Batch {
+        private final Context mContext;
+        private final File mDirectory;
+        private final File mWrittenFile;
+        private final AtomicInteger mPendingCount;
+
+        Batch(Context context, int count) {
+            mContext = context.getApplicationContext();
+            mDirectory = new File(context.getCacheDir(), CACHE_DIR_NAME);
+            mWrittenFile = new File(mDirectory, WRITTEN_FILE_NAME);
+            mPendingCount = new AtomicInteger(count);
+        }
+
+        void download(String url, List<Uri> logoUris) {
+            String hash;
+            try {
+                hash = fetch(url);
+            } catch (IOException e) {
+                Log.e(TAG, "Can't load " + url, e);
+                return;
+            }
+            File bodyFile = new File(mDirectory, hash + BODY_SUFFIX);
+            for (Uri logoUri : logoUris) {
+                synchronized (sWrittenLock) {
+                    if (hash.equals(getWritten(mWrittenFile).getProperty(logoUri.toString()))) {
+                        if (DEBUG) {
+                            Log.d(TAG, "Unchanged " + url + " for " + logoUri);
+                        }
+                        continue;
+                    }
+                }
+                if (DEBUG) {
+                    Log.d(TAG, "Writing " + url + " to " + logoUri);
+                }
+                // The logo is streamed from the cache rather than from the network, since whether
+                // it needs writing at all is only known once its hash is.
+                try (InputStream inputStream = new FileInputStream(bodyFile);
+                        OutputStream outputStream =
+                                mContext.getContentResolver().openOutputStream(logoUri)) {
+                    copy(inputStream, outputStream, null);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write " + url + " to " + logoUri, e);
+                    continue;
+                }
+                synchronized (sWrittenLock) {
+                    getWritten(mWrittenFile).setProperty(logoUri.toString(), hash);
+                }
+            }
+        }
+
+        void onDownloadFinished() {
+            if (mPendingCount.decrementAndGet() > 0) {
+                return;
+            }
+            // The record holds the logos of all the batches, so an overlapping batch which finishes
+            // later doesn't drop the ones written by this one.
+            synchronized (sWrittenLock) {
+                try {
+                    writeProperties(mWrittenFile, getWritten(mWrittenFile));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write " + mWrittenFile, e);
+                }
+            }
+        }
+
+        /**
+         * Makes sure the logo at {@code url} is in the cache, revalidating the cached copy if
+         * there is one, and returns the hash of its content.
+         */
+        private String fetch(String url) throws IOException {
+            File metaFile = new File(mDirectory, getHash(url.getBytes("UTF-8")) + META_SUFFIX);
+            Properties meta = readProperties(metaFile);
+            String cachedHash = meta.getProperty(META_HASH);
+            if (cachedHash != null && !new File(mDirectory, cachedHash + BODY_SUFFIX).isFile()) {
+                meta.clear();
+                cachedHash = null;
+            }
+
+            URLConnection connection = new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (connection instanceof HttpURLConnection && cachedHash != null) {
+                String eTag = meta.getProperty(META_ETAG);
+                if (eTag != null) {
+                    connection.setRequestProperty("If-None-Match", eTag);
+                }
+                String lastModified = meta.getProperty(META_LAST_MODIFIED);
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+            try {
+                if (connection instanceof HttpURLConnection) {
+                    int responseCode = ((HttpURLConnection) connection).getResponseCode();
+                    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedHash != null) {
+                        if (DEBUG) {
+                            Log.d(TAG, "Not modified " + url);
+                        }
+                        return cachedHash;
+                    }
+                    if (responseCode != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("Unexpected response " + responseCode);
+                    }
+                }
+                if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                    throw new IOException("Failed to create " + mDirectory);
+                }
+                String hash = store(connection.getInputStream());
+
+                Properties newMeta = new Properties();
+                newMeta.setProperty(META_HASH, hash);
+                String eTag = connection.getHeaderField("ETag");
+                if (eTag != null) {
+                    newMeta.setProperty(META_ETAG, eTag);
+                }
+                String lastModified = connection.getHeaderField("Last-Modified");
+                if (lastModified != null) {
+                    newMeta.setProperty(META_LAST_MODIFIED, lastModified);
+                }
+                writeProperties(metaFile, newMeta);
+                return hash;
+            } finally {
+                if (connection instanceof HttpURLConnection) {
+                    ((HttpURLConnection) connection).disconnect();
+                }
+            }
+        }
+
+        /**
+         * Stores the body read from {@code inputStream} in the cache under the hash of its
+         * content, and returns the hash.
+         */
+        private String store(InputStream inputStream) throws IOException {
+            MessageDigest digest = newDigest();
+            File tempFile = File.createTempFile("logo", TEMP_SUFFIX, mDirectory);
+            try {
+                try (InputStream in = inputStream;
+                        OutputStream outputStream = new FileOutputStream(tempFile)) {
+                    copy(in, outputStream, digest);
+                }
+                String hash = toHex(digest.digest());
+                File bodyFile = new File(mDirectory, hash + BODY_SUFFIX);
+                if (!bodyFile.isFile() && !tempFile.renameTo(bodyFile)) {
+                    throw new IOException("Failed to rename " + tempFile + " to " + bodyFile);
+                }
+                return hash;
+            } finally {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream,
+            MessageDigest digest) throws IOException {
+        byte[] buffer = sBuffer.get();
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, len);
+            if (digest != null) {
+                digest.update(buffer, 0, len);
+            }
+        }
+    }
+
+    private static Properties readProperties(File file) {
+        Properties properties = new Properties();
+        if (!file.isFile()) {
+            return properties;
+        }
+        try (InputStream inputStream = new FileInputStream(file)) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            // Start over. Everything is downloaded and written again.
+            properties.clear();
+        }
+        return properties;
+    }
+
+    private static void writeProperties(File file, Properties properties) throws IOException {
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+            properties.store(outputStream, null);
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+    }
+
+    private static String getHash(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
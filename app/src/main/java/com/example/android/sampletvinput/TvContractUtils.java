@@ -16,16 +16,20 @@
 
 package com.example.android.sampletvinput;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.media.tv.TvContentRating;
 import android.media.tv.TvContract;
 import android.media.tv.TvContract.Channels;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
@@ -36,12 +40,8 @@ import com.example.android.sampletvinput.data.Channel;
 import com.example.android.sampletvinput.data.Program;
 import com.example.android.sampletvinput.xmltv.XmlTvParser;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +52,64 @@ import java.util.Map;
 public class TvContractUtils {
     private static final String TAG = "TvContractUtils";
     private static final boolean DEBUG = true;
+    private static final char FINGERPRINT_DELIMITER = ';';
+    // The number of channel operations applied at once, small enough to avoid
+    // TransactionTooLargeException.
+    private static final int DEFAULT_CHANNEL_BATCH_SIZE = 100;
+
+    // Projection profiles for reading programs. A program read with one of them is a partial view
+    // which only has the listed columns set. The other fields keep their unset values.
+
+    /**
+     * The columns needed to compare stored programs with new ones, see
+     * {@link com.example.android.sampletvinput.syncadapter.ProgramDiff}. The fingerprint in the
+     * internal provider data stands for the rest of the content.
+     */
+    public static final String[] DIFF_PROGRAM_PROJECTION = {
+            TvContract.Programs._ID,
+            TvContract.Programs.COLUMN_CHANNEL_ID,
+            TvContract.Programs.COLUMN_TITLE,
+            TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+
+    /**
+     * The columns needed to play a program.
+     */
+    public static final String[] PLAYBACK_PROGRAM_PROJECTION = {
+            TvContract.Programs._ID,
+            TvContract.Programs.COLUMN_CHANNEL_ID,
+            TvContract.Programs.COLUMN_TITLE,
+            TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_CONTENT_RATING,
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+
+    /**
+     * All the columns of {@link Program}. Unlike a {@code null} projection, this doesn't read the
+     * columns of TvProvider which programs don't use.
+     */
+    public static final String[] FULL_PROGRAM_PROJECTION = {
+            TvContract.Programs._ID,
+            TvContract.Programs.COLUMN_CHANNEL_ID,
+            TvContract.Programs.COLUMN_TITLE,
+            TvContract.Programs.COLUMN_EPISODE_TITLE,
+            TvContract.Programs.COLUMN_SEASON_NUMBER,
+            TvContract.Programs.COLUMN_EPISODE_NUMBER,
+            TvContract.Programs.COLUMN_SHORT_DESCRIPTION,
+            TvContract.Programs.COLUMN_LONG_DESCRIPTION,
+            TvContract.Programs.COLUMN_POSTER_ART_URI,
+            TvContract.Programs.COLUMN_THUMBNAIL_URI,
+            TvContract.Programs.COLUMN_CANONICAL_GENRE,
+            TvContract.Programs.COLUMN_CONTENT_RATING,
+            TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_VIDEO_WIDTH,
+            TvContract.Programs.COLUMN_VIDEO_HEIGHT,
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA
+    };
 
     private static final SparseArray<String> VIDEO_HEIGHT_TO_FORMAT_MAP = new SparseArray<>();
 
@@ -66,31 +124,126 @@ public class TvContractUtils {
 
     public static void updateChannels(
             Context context, String inputId, List<XmlTvParser.XmlTvChannel> channels) {
-        // Create a map from original network ID to channel row ID for existing channels.
-        SparseArray<Long> channelMap = new SparseArray<>();
+        updateChannels(context, inputId, channels, DEFAULT_CHANNEL_BATCH_SIZE);
+    }
+
+    /**
+     * Inserts, updates and deletes the channels of {@code inputId} so that they match
+     * {@code channels}, identifying them by original network ID. The operations are applied in
+     * batches of up to {@code batchSize}, and channels whose columns haven't changed aren't written
+     * at all. The channel logos are downloaded in the background.
+     */
+    public static void updateChannels(Context context, String inputId,
+            List<XmlTvParser.XmlTvChannel> channels, int batchSize) {
+        // Create a map from original network ID to the stored columns of existing channels.
+        SparseArray<ContentValues> channelMap = new SparseArray<>();
         Uri channelsUri = TvContract.buildChannelsUriForInput(inputId);
-        String[] projection = {Channels._ID, Channels.COLUMN_ORIGINAL_NETWORK_ID};
         ContentResolver resolver = context.getContentResolver();
-        try (Cursor cursor = resolver.query(channelsUri, projection, null, null, null)) {
+        try (Cursor cursor = resolver.query(channelsUri, getChannelProjection(), null, null,
+                null)) {
             while (cursor != null && cursor.moveToNext()) {
-                long rowId = cursor.getLong(0);
-                int originalNetworkId = cursor.getInt(1);
-                channelMap.put(originalNetworkId, rowId);
+                ContentValues row = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, row);
+                channelMap.put(row.getAsInteger(Channels.COLUMN_ORIGINAL_NETWORK_ID), row);
             }
         }
 
-        // If a channel exists, update it. If not, insert a new one.
-        ContentValues values = new ContentValues();
-        values.put(Channels.COLUMN_INPUT_ID, inputId);
+        // If a channel exists and has changed, update it. If not, insert a new one.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        // The logo URL of the channel inserted by each operation, if any. The URI of the logo is
+        // only known once the insertion has been applied.
+        List<String> insertedLogos = new ArrayList<>();
         Map<Uri, String> logos = new HashMap<>();
         for (XmlTvParser.XmlTvChannel channel : channels) {
-            values.put(Channels.COLUMN_DISPLAY_NUMBER, channel.displayNumber);
-            values.put(Channels.COLUMN_DISPLAY_NAME, channel.displayName);
-            values.put(Channels.COLUMN_ORIGINAL_NETWORK_ID, channel.originalNetworkId);
-            values.put(Channels.COLUMN_TRANSPORT_STREAM_ID, channel.transportStreamId);
-            values.put(Channels.COLUMN_SERVICE_ID, channel.serviceId);
-            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1
-                    && channel.appLink != null) {
+            ContentValues values = getChannelValues(inputId, channel);
+            String logo = channel.icon != null && !TextUtils.isEmpty(channel.icon.src)
+                    ? channel.icon.src : null;
+            ContentValues row = channelMap.get(channel.originalNetworkId);
+            if (row == null) {
+                ops.add(ContentProviderOperation.newInsert(TvContract.Channels.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+                insertedLogos.add(logo);
+                continue;
+            }
+            channelMap.remove(channel.originalNetworkId);
+            Uri uri = TvContract.buildChannelUri(row.getAsLong(Channels._ID));
+            if (!containsValues(row, values)) {
+                ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+                insertedLogos.add(null);
+            }
+            if (logo != null) {
+                logos.put(TvContract.buildChannelLogoUri(uri), logo);
+            }
+        }
+
+        // Deletes channels which don't exist in the new feed.
+        int size = channelMap.size();
+        for(int i = 0; i < size; ++i) {
+            long rowId = channelMap.valueAt(i).getAsLong(Channels._ID);
+            ops.add(ContentProviderOperation.newDelete(TvContract.buildChannelUri(rowId)).build());
+            insertedLogos.add(null);
+        }
+
+        for (int i = 0; i < ops.size(); i += batchSize) {
+            int end = Math.min(i + batchSize, ops.size());
+            ContentProviderResult[] results;
+            try {
+                results = resolver.applyBatch(TvContract.AUTHORITY,
+                        new ArrayList<>(ops.subList(i, end)));
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to update channels.", e);
+                continue;
+            }
+            for (int j = 0; j < results.length; ++j) {
+                String logo = insertedLogos.get(i + j);
+                if (logo != null && results[j].uri != null) {
+                    logos.put(TvContract.buildChannelLogoUri(results[j].uri), logo);
+                }
+            }
+        }
+        if (!logos.isEmpty()) {
+            LogoDownloader.download(context, logos);
+        }
+    }
+
+    /**
+     * Returns the columns written by {@link #updateChannels}, together with the row ID.
+     */
+    private static String[] getChannelProjection() {
+        List<String> projection = new ArrayList<>();
+        Collections.addAll(projection, Channels._ID, Channels.COLUMN_INPUT_ID,
+                Channels.COLUMN_DISPLAY_NUMBER, Channels.COLUMN_DISPLAY_NAME,
+                Channels.COLUMN_ORIGINAL_NETWORK_ID, Channels.COLUMN_TRANSPORT_STREAM_ID,
+                Channels.COLUMN_SERVICE_ID);
+        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1) {
+            Collections.addAll(projection, Channels.COLUMN_APP_LINK_TEXT,
+                    Channels.COLUMN_APP_LINK_COLOR, Channels.COLUMN_APP_LINK_POSTER_ART_URI,
+                    Channels.COLUMN_APP_LINK_ICON_URI, Channels.COLUMN_APP_LINK_INTENT_URI);
+        }
+        return projection.toArray(new String[projection.size()]);
+    }
+
+    /**
+     * Returns the columns of {@code channel}. The app link columns the channel doesn't have are
+     * cleared, so that an update doesn't leave stale values behind.
+     */
+    private static ContentValues getChannelValues(String inputId,
+            XmlTvParser.XmlTvChannel channel) {
+        ContentValues values = new ContentValues();
+        values.put(Channels.COLUMN_INPUT_ID, inputId);
+        values.put(Channels.COLUMN_DISPLAY_NUMBER, channel.displayNumber);
+        values.put(Channels.COLUMN_DISPLAY_NAME, channel.displayName);
+        values.put(Channels.COLUMN_ORIGINAL_NETWORK_ID, channel.originalNetworkId);
+        values.put(Channels.COLUMN_TRANSPORT_STREAM_ID, channel.transportStreamId);
+        values.put(Channels.COLUMN_SERVICE_ID, channel.serviceId);
+        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1) {
+            values.putNull(Channels.COLUMN_APP_LINK_TEXT);
+            values.putNull(Channels.COLUMN_APP_LINK_COLOR);
+            values.putNull(Channels.COLUMN_APP_LINK_POSTER_ART_URI);
+            values.putNull(Channels.COLUMN_APP_LINK_ICON_URI);
+            values.putNull(Channels.COLUMN_APP_LINK_INTENT_URI);
+            if (channel.appLink != null) {
                 values.put(Channels.COLUMN_APP_LINK_TEXT, channel.appLink.text);
                 if (channel.appLink.color != null) {
                     values.put(Channels.COLUMN_APP_LINK_COLOR, channel.appLink.color);
@@ -105,39 +258,54 @@ public class TvContractUtils {
                     values.put(Channels.COLUMN_APP_LINK_INTENT_URI, channel.appLink.intentUri);
                 }
             }
-            Long rowId = channelMap.get(channel.originalNetworkId);
-            Uri uri;
-            if (rowId == null) {
-                uri = resolver.insert(TvContract.Channels.CONTENT_URI, values);
-            } else {
-                uri = TvContract.buildChannelUri(rowId);
-                resolver.update(uri, values, null, null);
-                channelMap.remove(channel.originalNetworkId);
-            }
-            if (channel.icon != null && !TextUtils.isEmpty(channel.icon.src)) {
-                logos.put(TvContract.buildChannelLogoUri(uri), channel.icon.src);
-            }
-        }
-        if (!logos.isEmpty()) {
-            new InsertLogosTask(context).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, logos);
         }
+        return values;
+    }
 
-        // Deletes channels which don't exist in the new feed.
-        int size = channelMap.size();
-        for(int i = 0; i < size; ++i) {
-            Long rowId = channelMap.valueAt(i);
-            resolver.delete(TvContract.buildChannelUri(rowId), null, null);
+    /**
+     * Returns {@code true} if {@code row}, as read from a cursor, holds all of {@code values}.
+     * Cursor rows are read as strings, so the values are compared by their string form.
+     */
+    private static boolean containsValues(ContentValues row, ContentValues values) {
+        for (String key : values.keySet()) {
+            if (!TextUtils.equals(row.getAsString(key), values.getAsString(key))) {
+                return false;
+            }
         }
+        return true;
     }
 
     public static LongSparseArray<XmlTvParser.XmlTvChannel> buildChannelMap(
             ContentResolver resolver, String inputId, List<XmlTvParser.XmlTvChannel> channels) {
+        return buildChannelMap(resolver, inputId, channels, null);
+    }
+
+    /**
+     * Returns a map from the row IDs of the channels of {@code inputId} to the channels of the
+     * feed with the same display numbers, or {@code null} if there are no channels or they can't
+     * be queried.
+     *
+     * @param unknownChannels If not {@code null}, receives the row IDs and display numbers of the
+     *         channels which aren't in the feed anymore.
+     */
+    public static LongSparseArray<XmlTvParser.XmlTvChannel> buildChannelMap(
+            ContentResolver resolver, String inputId, List<XmlTvParser.XmlTvChannel> channels,
+            LongSparseArray<String> unknownChannels) {
         Uri uri = TvContract.buildChannelsUriForInput(inputId);
         String[] projection = {
                 TvContract.Channels._ID,
                 TvContract.Channels.COLUMN_DISPLAY_NUMBER
         };
 
+        // Index the feed once instead of searching it for every row.
+        Map<String, XmlTvParser.XmlTvChannel> channelsByNumber =
+                new HashMap<>(channels.size() * 4 / 3 + 1);
+        for (XmlTvParser.XmlTvChannel channel : channels) {
+            if (!channelsByNumber.containsKey(channel.displayNumber)) {
+                channelsByNumber.put(channel.displayNumber, channel);
+            }
+        }
+
         LongSparseArray<XmlTvParser.XmlTvChannel> channelMap = new LongSparseArray<>();
         try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
             if (cursor == null || cursor.getCount() == 0) {
@@ -147,7 +315,12 @@ public class TvContractUtils {
             while (cursor.moveToNext()) {
                 long channelId = cursor.getLong(0);
                 String channelNumber = cursor.getString(1);
-                channelMap.put(channelId, getChannelByNumber(channelNumber, channels));
+                XmlTvParser.XmlTvChannel channel = channelsByNumber.get(channelNumber);
+                if (channel != null) {
+                    channelMap.put(channelId, channel);
+                } else if (unknownChannels != null) {
+                    unknownChannels.put(channelId, channelNumber);
+                }
             }
         } catch (Exception e) {
             Log.d(TAG, "Content provider query: " + e.getStackTrace());
@@ -163,8 +336,9 @@ public class TvContractUtils {
             if (cursor == null || cursor.getCount() == 0) {
                 return channels;
             }
+            Channel.CursorReader reader = new Channel.CursorReader(cursor);
             while (cursor.moveToNext()) {
-                channels.add(Channel.fromCursor(cursor));
+                channels.add(reader.read());
             }
         } catch (Exception e) {
             Log.w(TAG, "Unable to get channels", e);
@@ -173,15 +347,27 @@ public class TvContractUtils {
     }
 
     public static List<Program> getPrograms(ContentResolver resolver, Uri channelUri) {
+        return getPrograms(resolver, channelUri, FULL_PROGRAM_PROJECTION);
+    }
+
+    /**
+     * Returns all the programs of the given channel in chronological order.
+     *
+     * @param projection The columns to read, e.g. one of the projection profiles of this class,
+     *         or {@code null} for all of them.
+     */
+    public static List<Program> getPrograms(ContentResolver resolver, Uri channelUri,
+            String[] projection) {
         Uri uri = TvContract.buildProgramsUriForChannel(channelUri);
         List<Program> programs = new ArrayList<>();
         // TvProvider returns programs in chronological order by default.
-        try (Cursor cursor = resolver.query(uri, null, null, null, null)){
+        try (Cursor cursor = resolver.query(uri, projection, null, null, null)){
             if (cursor == null || cursor.getCount() == 0) {
                 return programs;
             }
+            Program.CursorReader reader = new Program.CursorReader(cursor);
             while (cursor.moveToNext()) {
-                programs.add(Program.fromCursor(cursor));
+                programs.add(reader.read());
             }
         } catch (Exception e) {
             Log.w(TAG, "Unable to get programs for " + channelUri, e);
@@ -189,15 +375,32 @@ public class TvContractUtils {
         return programs;
     }
 
-    public static Program getCurrentProgram(ContentResolver resolver, Uri channelUri) {
-        List<Program> programs = getPrograms(resolver, channelUri);
-        long nowMs = System.currentTimeMillis();
-        for (Program program : programs) {
-            if (program.getStartTimeUtcMillis() <= nowMs && program.getEndTimeUtcMillis() > nowMs) {
-                return program;
+    /**
+     * Returns the programs of the given channel which overlap with the given time range, in
+     * chronological order.
+     *
+     * <p>Only the given range is read from TvProvider, so this doesn't get slower as more programs
+     * are stored for the channel.
+     *
+     * @param projection The columns to read, or {@code null} for all of them.
+     */
+    public static List<Program> getPrograms(ContentResolver resolver, Uri channelUri,
+            long startTimeMs, long endTimeMs, String[] projection) {
+        Uri uri = TvContract.buildProgramsUriForChannel(channelUri, startTimeMs, endTimeMs);
+        List<Program> programs = new ArrayList<>();
+        // TvProvider returns programs in chronological order by default.
+        try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+            if (cursor == null || cursor.getCount() == 0) {
+                return programs;
             }
+            Program.CursorReader reader = new Program.CursorReader(cursor);
+            while (cursor.moveToNext()) {
+                programs.add(reader.read());
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to get programs for " + channelUri, e);
         }
-        return null;
+        return programs;
     }
 
     public static String convertVideoInfoToInternalProviderData(int videotype, String videoUrl) {
@@ -205,49 +408,59 @@ public class TvContractUtils {
     }
 
     public static Pair<Integer, String> parseProgramInternalProviderData(String internalData) {
-        String[] values = internalData.split(",", 2);
+        String[] values = stripProgramFingerprint(internalData).split(",", 2);
         if (values.length != 2) {
             throw new IllegalArgumentException(internalData);
         }
         return new Pair<>(Integer.parseInt(values[0]), values[1]);
     }
 
-    public static void insertUrl(Context context, Uri contentUri, URL sourceUrl) {
-        if (DEBUG) {
-            Log.d(TAG, "Inserting " + sourceUrl + " to " + contentUri);
+    /**
+     * Returns {@code internalData} tagged with the given program fingerprint, replacing any
+     * fingerprint it already had. The fingerprint is stored in front of the video info, i.e.
+     * {@code <fingerprint>;<video type>,<video URL>}, and is ignored by
+     * {@link #parseProgramInternalProviderData}. The fingerprint is written as a signed decimal
+     * number so that it can be read back with {@link Long#parseLong(String)} whatever its sign.
+     */
+    public static String setProgramFingerprint(String internalData, long fingerprint) {
+        String videoInfo = stripProgramFingerprint(internalData);
+        return Long.toString(fingerprint) + FINGERPRINT_DELIMITER
+                + (videoInfo == null ? "" : videoInfo);
+    }
+
+    /**
+     * Returns the program fingerprint stored in {@code internalData} by
+     * {@link #setProgramFingerprint}, or {@code null} if there is none.
+     */
+    public static Long getProgramFingerprint(String internalData) {
+        int fingerprintEnd = getFingerprintEnd(internalData);
+        if (fingerprintEnd < 0) {
+            return null;
         }
-        InputStream is = null;
-        OutputStream os = null;
         try {
-            is = sourceUrl.openStream();
-            os = context.getContentResolver().openOutputStream(contentUri);
-            copy(is, os);
-        } catch (IOException ioe) {
-            Log.e(TAG, "Failed to write " + sourceUrl + "  to " + contentUri, ioe);
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    // Ignore exception.
-                }
-            }
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (IOException e) {
-                    // Ignore exception.
-                }
-            }
+            return Long.parseLong(internalData.substring(0, fingerprintEnd));
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
-    public static void copy(InputStream is, OutputStream os) throws IOException {
-        byte[] buffer = new byte[1024];
-        int len;
-        while ((len = is.read(buffer)) != -1) {
-            os.write(buffer, 0, len);
+    /**
+     * Returns {@code internalData} without the fingerprint set by {@link #setProgramFingerprint}.
+     */
+    public static String stripProgramFingerprint(String internalData) {
+        int fingerprintEnd = getFingerprintEnd(internalData);
+        return fingerprintEnd < 0 ? internalData : internalData.substring(fingerprintEnd + 1);
+    }
+
+    private static int getFingerprintEnd(String internalData) {
+        if (internalData == null) {
+            return -1;
         }
+        // The video type, which comes first otherwise, never contains the delimiter.
+        int fingerprintEnd = internalData.indexOf(FINGERPRINT_DELIMITER);
+        int videoTypeEnd = internalData.indexOf(',');
+        return fingerprintEnd >= 0 && (videoTypeEnd < 0 || fingerprintEnd < videoTypeEnd)
+                ? fingerprintEnd : -1;
     }
 
     public static TvContentRating[] stringToContentRatings(String commaSeparatedRatings) {
@@ -275,37 +488,5 @@ public class TvContractUtils {
         return ratings.toString();
     }
 
-    private static XmlTvParser.XmlTvChannel getChannelByNumber(String channelNumber,
-            List<XmlTvParser.XmlTvChannel> channels) {
-        for (XmlTvParser.XmlTvChannel channel : channels) {
-            if (channelNumber.equals(channel.displayNumber)) {
-                return channel;
-            }
-        }
-        throw new IllegalArgumentException("Unknown channel: " + channelNumber);
-    }
-
     private TvContractUtils() {}
-
-    public static class InsertLogosTask extends AsyncTask<Map<Uri, String>, Void, Void> {
-        private final Context mContext;
-
-        InsertLogosTask(Context context) {
-            mContext = context;
-        }
-
-        @Override
-        public Void doInBackground(Map<Uri, String>... logosList) {
-            for (Map<Uri, String> logos : logosList) {
-                for (Uri uri : logos.keySet()) {
-                    try {
-                        insertUrl(mContext, uri, new URL(logos.get(uri)));
-                    } catch (MalformedURLException e) {
-                        Log.e(TAG, "Can't load " + logos.get(uri), e);
-                    }
-                }
-            }
-            return null;
-        }
-    }
 }
@@ -224,75 +224,108 @@ public final class Channel {
     }
 
     public static Channel fromCursor(Cursor cursor) {
-        Builder builder = new Builder();
-        int index = cursor.getColumnIndex(TvContract.Channels._ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setId(cursor.getLong(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_PACKAGE_NAME);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setPackageName(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_INPUT_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setInputId(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_TYPE);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setType(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_DISPLAY_NUMBER);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setDisplayNumber(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_DISPLAY_NAME);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setDisplayName(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_DESCRIPTION);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setDescription(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_VIDEO_FORMAT);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setVideoFormat(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setOriginalNetworkId(cursor.getInt(index));
+        return new CursorReader(cursor).read();
+    }
+
+    /**
+     * Reads channels from the rows of a cursor. The column indices are resolved once, when the
+     * reader is created, so reading a row doesn't look up any column by name. Columns which are
+     * missing from the cursor are read as unset.
+     */
+    public static final class CursorReader {
+        private final Cursor mCursor;
+        private final int mIdIndex;
+        private final int mPackageNameIndex;
+        private final int mInputIdIndex;
+        private final int mTypeIndex;
+        private final int mDisplayNumberIndex;
+        private final int mDisplayNameIndex;
+        private final int mDescriptionIndex;
+        private final int mVideoFormatIndex;
+        private final int mOriginalNetworkIdIndex;
+        private final int mTransportStreamIdIndex;
+        private final int mServiceIdIndex;
+        private final int mAppLinkTextIndex;
+        private final int mAppLinkColorIndex;
+        private final int mAppLinkIconUriIndex;
+        private final int mAppLinkPosterArtUriIndex;
+        private final int mAppLinkIntentUriIndex;
+
+        public CursorReader(Cursor cursor) {
+            mCursor = cursor;
+            mIdIndex = cursor.getColumnIndex(TvContract.Channels._ID);
+            mPackageNameIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_PACKAGE_NAME);
+            mInputIdIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_INPUT_ID);
+            mTypeIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_TYPE);
+            mDisplayNumberIndex = cursor.getColumnIndex(
+                    TvContract.Channels.COLUMN_DISPLAY_NUMBER);
+            mDisplayNameIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_DISPLAY_NAME);
+            mDescriptionIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_DESCRIPTION);
+            mVideoFormatIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_VIDEO_FORMAT);
+            mOriginalNetworkIdIndex = cursor.getColumnIndex(
+                    TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID);
+            mTransportStreamIdIndex = cursor.getColumnIndex(
+                    TvContract.Channels.COLUMN_TRANSPORT_STREAM_ID);
+            mServiceIdIndex = cursor.getColumnIndex(TvContract.Channels.COLUMN_SERVICE_ID);
+            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1) {
+                mAppLinkTextIndex = cursor.getColumnIndex(
+                        TvContract.Channels.COLUMN_APP_LINK_TEXT);
+                mAppLinkColorIndex = cursor.getColumnIndex(
+                        TvContract.Channels.COLUMN_APP_LINK_COLOR);
+                mAppLinkIconUriIndex = cursor.getColumnIndex(
+                        TvContract.Channels.COLUMN_APP_LINK_ICON_URI);
+                mAppLinkPosterArtUriIndex = cursor.getColumnIndex(
+                        TvContract.Channels.COLUMN_APP_LINK_POSTER_ART_URI);
+                mAppLinkIntentUriIndex = cursor.getColumnIndex(
+                        TvContract.Channels.COLUMN_APP_LINK_INTENT_URI);
+            } else {
+                mAppLinkTextIndex = -1;
+                mAppLinkColorIndex = -1;
+                mAppLinkIconUriIndex = -1;
+                mAppLinkPosterArtUriIndex = -1;
+                mAppLinkIntentUriIndex = -1;
+            }
         }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_TRANSPORT_STREAM_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setTransportStreamId(cursor.getInt(index));
+
+        /**
+         * Returns a new channel holding the current row of the cursor.
+         */
+        public Channel read() {
+            return read(new Channel());
+        }
+
+        /**
+         * Overwrites {@code channel} with the current row of the cursor and returns it. This
+         * avoids an allocation per row when the channel is only needed until the next row is read.
+         */
+        public Channel read(Channel channel) {
+            channel.mId = mIdIndex >= 0 && !mCursor.isNull(mIdIndex)
+                    ? mCursor.getLong(mIdIndex) : INVALID_CHANNEL_ID;
+            channel.mPackageName = getString(mPackageNameIndex);
+            channel.mInputId = getString(mInputIdIndex);
+            channel.mType = getString(mTypeIndex);
+            channel.mDisplayNumber = getString(mDisplayNumberIndex);
+            channel.mDisplayName = getString(mDisplayNameIndex);
+            channel.mDescription = getString(mDescriptionIndex);
+            channel.mVideoFormat = getString(mVideoFormatIndex);
+            channel.mOriginalNetworkId = getInt(mOriginalNetworkIdIndex);
+            channel.mTransportStreamId = getInt(mTransportStreamIdIndex);
+            channel.mServiceId = getInt(mServiceIdIndex);
+            channel.mAppLinkText = getString(mAppLinkTextIndex);
+            channel.mAppLinkColor = getInt(mAppLinkColorIndex);
+            channel.mAppLinkIconUri = getString(mAppLinkIconUriIndex);
+            channel.mAppLinkPosterArtUri = getString(mAppLinkPosterArtUriIndex);
+            channel.mAppLinkIntentUri = getString(mAppLinkIntentUriIndex);
+            return channel;
         }
-        index = cursor.getColumnIndex(TvContract.Channels.COLUMN_SERVICE_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setServiceId(cursor.getInt(index));
+
+        private int getInt(int index) {
+            return index >= 0 && !mCursor.isNull(index) ? mCursor.getInt(index) : 0;
         }
 
-        if (Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1) {
-            index = cursor.getColumnIndex(TvContract.Channels.COLUMN_APP_LINK_TEXT);
-            if (index >= 0 && !cursor.isNull(index)) {
-                builder.setAppLinkText(cursor.getString(index));
-            }
-            index = cursor.getColumnIndex(TvContract.Channels.COLUMN_APP_LINK_COLOR);
-            if (index >= 0 && !cursor.isNull(index)) {
-                builder.setAppLinkColor(cursor.getInt(index));
-            }
-            index = cursor.getColumnIndex(TvContract.Channels.COLUMN_APP_LINK_ICON_URI);
-            if (index >= 0 && !cursor.isNull(index)) {
-                builder.setAppLinkIconUri(cursor.getString(index));
-            }
-            index = cursor.getColumnIndex(TvContract.Channels.COLUMN_APP_LINK_POSTER_ART_URI);
-            if (index >= 0 && !cursor.isNull(index)) {
-                builder.setAppLinkPosterArtUri(cursor.getString(index));
-            }
-            index = cursor.getColumnIndex(TvContract.Channels.COLUMN_APP_LINK_INTENT_URI);
-            if (index >= 0 && !cursor.isNull(index)) {
-                builder.setAppLinkIntentUri(cursor.getString(index));
-            }
+        private String getString(int index) {
+            return index >= 0 && !mCursor.isNull(index) ? mCursor.getString(index) : null;
         }
-        return builder.build();
     }
 
     public static final class Builder {
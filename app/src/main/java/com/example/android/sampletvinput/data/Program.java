@@ -209,6 +209,7 @@ public final class Program implements Comparable<Program> {
         mThumbnailUri = other.mThumbnailUri;
         mCanonicalGenres = other.mCanonicalGenres;
         mContentRatings = other.mContentRatings;
+        mInternalProviderData = other.mInternalProviderData;
     }
 
     public ContentValues toContentValues() {
@@ -294,77 +295,110 @@ public final class Program implements Comparable<Program> {
     }
 
     public static Program fromCursor(Cursor cursor) {
-        Builder builder = new Builder();
-        int index = cursor.getColumnIndex(TvContract.Programs._ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setProgramId(cursor.getLong(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_CHANNEL_ID);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setChannelId(cursor.getLong(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_TITLE);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setTitle(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_TITLE);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setEpisodeTitle(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_SEASON_NUMBER);
-        if(index >= 0 && !cursor.isNull(index)) {
-            builder.setSeasonNumber(cursor.getInt(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_NUMBER);
-        if(index >= 0 && !cursor.isNull(index)) {
-            builder.setEpisodeNumber(cursor.getInt(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_SHORT_DESCRIPTION);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setDescription(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_LONG_DESCRIPTION);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setLongDescription(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_POSTER_ART_URI);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setPosterArtUri(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_THUMBNAIL_URI);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setThumbnailUri(cursor.getString(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_CANONICAL_GENRE);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setCanonicalGenres(TvContract.Programs.Genres.decode(cursor.getString(index)));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_CONTENT_RATING);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setContentRatings(TvContractUtils.stringToContentRatings(cursor.getString(
-                    index)));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setStartTimeUtcMillis(cursor.getLong(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setEndTimeUtcMillis(cursor.getLong(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_VIDEO_WIDTH);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setVideoWidth((int) cursor.getLong(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_VIDEO_HEIGHT);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setVideoHeight((int) cursor.getLong(index));
-        }
-        index = cursor.getColumnIndex(TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA);
-        if (index >= 0 && !cursor.isNull(index)) {
-            builder.setInternalProviderData(cursor.getString(index));
+        return new CursorReader(cursor).read();
+    }
+
+    /**
+     * Reads programs from the rows of a cursor. The column indices are resolved once, when the
+     * reader is created, so reading a row doesn't look up any column by name. Columns which are
+     * missing from the cursor are read as unset.
+     */
+    public static final class CursorReader {
+        private final Cursor mCursor;
+        private final int mProgramIdIndex;
+        private final int mChannelIdIndex;
+        private final int mTitleIndex;
+        private final int mEpisodeTitleIndex;
+        private final int mSeasonNumberIndex;
+        private final int mEpisodeNumberIndex;
+        private final int mDescriptionIndex;
+        private final int mLongDescriptionIndex;
+        private final int mPosterArtUriIndex;
+        private final int mThumbnailUriIndex;
+        private final int mCanonicalGenresIndex;
+        private final int mContentRatingsIndex;
+        private final int mStartTimeUtcMillisIndex;
+        private final int mEndTimeUtcMillisIndex;
+        private final int mVideoWidthIndex;
+        private final int mVideoHeightIndex;
+        private final int mInternalProviderDataIndex;
+
+        public CursorReader(Cursor cursor) {
+            mCursor = cursor;
+            mProgramIdIndex = cursor.getColumnIndex(TvContract.Programs._ID);
+            mChannelIdIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_CHANNEL_ID);
+            mTitleIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_TITLE);
+            mEpisodeTitleIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_EPISODE_TITLE);
+            mSeasonNumberIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_SEASON_NUMBER);
+            mEpisodeNumberIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_EPISODE_NUMBER);
+            mDescriptionIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_SHORT_DESCRIPTION);
+            mLongDescriptionIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_LONG_DESCRIPTION);
+            mPosterArtUriIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_POSTER_ART_URI);
+            mThumbnailUriIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_THUMBNAIL_URI);
+            mCanonicalGenresIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_CANONICAL_GENRE);
+            mContentRatingsIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_CONTENT_RATING);
+            mStartTimeUtcMillisIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS);
+            mEndTimeUtcMillisIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS);
+            mVideoWidthIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_VIDEO_WIDTH);
+            mVideoHeightIndex = cursor.getColumnIndex(TvContract.Programs.COLUMN_VIDEO_HEIGHT);
+            mInternalProviderDataIndex = cursor.getColumnIndex(
+                    TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA);
+        }
+
+        /**
+         * Returns a new program holding the current row of the cursor.
+         */
+        public Program read() {
+            return read(new Program());
+        }
+
+        /**
+         * Overwrites {@code program} with the current row of the cursor and returns it. This
+         * avoids an allocation per row when the program is only needed until the next row is read.
+         */
+        public Program read(Program program) {
+            program.mProgramId = getLong(mProgramIdIndex, INVALID_LONG_VALUE);
+            program.mChannelId = getLong(mChannelIdIndex, INVALID_LONG_VALUE);
+            program.mTitle = getString(mTitleIndex);
+            program.mEpisodeTitle = getString(mEpisodeTitleIndex);
+            program.mSeasonNumber = getInt(mSeasonNumberIndex);
+            program.mEpisodeNumber = getInt(mEpisodeNumberIndex);
+            program.mDescription = getString(mDescriptionIndex);
+            program.mLongDescription = getString(mLongDescriptionIndex);
+            program.mPosterArtUri = getString(mPosterArtUriIndex);
+            program.mThumbnailUri = getString(mThumbnailUriIndex);
+            String genres = getString(mCanonicalGenresIndex);
+            program.mCanonicalGenres = genres == null
+                    ? null : TvContract.Programs.Genres.decode(genres);
+            String ratings = getString(mContentRatingsIndex);
+            program.mContentRatings = ratings == null
+                    ? null : TvContractUtils.stringToContentRatings(ratings);
+            program.mStartTimeUtcMillis = getLong(mStartTimeUtcMillisIndex, INVALID_LONG_VALUE);
+            program.mEndTimeUtcMillis = getLong(mEndTimeUtcMillisIndex, INVALID_LONG_VALUE);
+            program.mVideoWidth = getInt(mVideoWidthIndex);
+            program.mVideoHeight = getInt(mVideoHeightIndex);
+            program.mInternalProviderData = getString(mInternalProviderDataIndex);
+            return program;
+        }
+
+        private long getLong(int index, long defaultValue) {
+            return index >= 0 && !mCursor.isNull(index) ? mCursor.getLong(index) : defaultValue;
+        }
+
+        private int getInt(int index) {
+            return (int) getLong(index, INVALID_INT_VALUE);
+        }
+
+        private String getString(int index) {
+            return index >= 0 && !mCursor.isNull(index) ? mCursor.getString(index) : null;
         }
-        return builder.build();
     }
 
     public static final class Builder {
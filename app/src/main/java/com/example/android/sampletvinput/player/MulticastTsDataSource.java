@@ -0,0 +1,387 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.player;
+
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link UriDataSource} for MPEG-TS over UDP, e.g. {@code udp://239.0.0.1:1234}.
+ *
+ * <p>A dedicated thread receives the datagrams into a preallocated ring buffer, so that the socket
+ * is drained even while the player is busy, and bursts of packets don't overflow the receive
+ * buffer of the socket. Each datagram is realigned on the 188-byte TS packet boundaries, which
+ * also skips e.g. an RTP header, and only whole TS packets are stored. Duplicated packets, and
+ * packets which arrive shortly after a later packet of the same PID according to the continuity
+ * counter, are dropped as late. Any other jump of the counter is taken as a loss, and the counter
+ * is resynchronized to it.
+ *
+ * <p>Reading starts once a number of packets have been buffered, and starts over whenever the
+ * buffer runs dry, to absorb the jitter of the network.
+ *
+ * <p>The ring buffer has a single writer, the receive thread, and a single reader, the loader
+ * thread of the player, and is synchronized through its volatile read and write positions only.
+ */
+public final class MulticastTsDataSource implements UriDataSource {
+    private static final String TAG = "MulticastTsDataSource";
+    private static final boolean DEBUG = false;
+
+    public static final int TS_PACKET_SIZE = 188;
+    public static final int DEFAULT_BUFFER_PACKET_COUNT = 16 * 1024;  // About 3MB
+    public static final int DEFAULT_PREBUFFER_PACKET_COUNT = 7 * 32;  // About 32 datagrams
+
+    private static final int TS_SYNC_BYTE = 0x47;
+    private static final int PID_COUNT = 0x2000;
+    private static final int NULL_PID = 0x1fff;
+    // How far a packet may arrive behind a later one of the same PID to be dropped as late. A
+    // larger step back of the 4-bit continuity counter is taken as a loss instead.
+    private static final int MAX_REORDER_DISTANCE = 3;
+    private static final int MAX_DATAGRAM_SIZE = 64 * 1024;
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    private static final int SOCKET_TIMEOUT_MS = 500;
+    private static final int READ_TIMEOUT_MS = 8000;
+    private static final long READ_POLL_INTERVAL_NS = 5 * 1000 * 1000;  // 5ms
+
+    private final byte[] mBuffer;
+    private final int mPrebufferSize;
+
+    // Only written by the receive thread.
+    private volatile long mWritePosition;
+    // Only written by the reading thread.
+    private volatile long mReadPosition;
+    private boolean mPrebuffering;
+
+    private volatile boolean mClosed;
+    private volatile IOException mReceiveError;
+    private volatile Thread mReadingThread;
+    private String mUri;
+    private MulticastSocket mSocket;
+    private InetAddress mGroup;
+    private Thread mReceiveThread;
+
+    // Accessed by the receive thread only, except for the counters which are read for stats.
+    private final byte[] mContinuityCounters = new byte[PID_COUNT];
+    // The hash of the last packet of each PID, to tell duplicates from a loss of 16 packets.
+    private final int[] mPacketHashes = new int[PID_COUNT];
+    private volatile long mReceivedPacketCount;
+    private volatile long mDroppedPacketCount;
+    private volatile long mLatePacketCount;
+
+    public MulticastTsDataSource() {
+        this(DEFAULT_BUFFER_PACKET_COUNT, DEFAULT_PREBUFFER_PACKET_COUNT);
+    }
+
+    /**
+     * @param bufferPacketCount The capacity of the ring buffer, in TS packets.
+     * @param prebufferPacketCount The number of TS packets to buffer before reading starts.
+     */
+    public MulticastTsDataSource(int bufferPacketCount, int prebufferPacketCount) {
+        if (prebufferPacketCount > bufferPacketCount) {
+            throw new IllegalArgumentException();
+        }
+        mBuffer = new byte[bufferPacketCount * TS_PACKET_SIZE];
+        mPrebufferSize = prebufferPacketCount * TS_PACKET_SIZE;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        mUri = dataSpec.uri.toString();
+        String host = dataSpec.uri.getHost();
+        int port = dataSpec.uri.getPort();
+        if (port < 0) {
+            throw new IOException("No port in " + mUri);
+        }
+        mWritePosition = 0;
+        mReadPosition = 0;
+        mPrebuffering = true;
+        mClosed = false;
+        mReceiveError = null;
+        mReceivedPacketCount = 0;
+        mDroppedPacketCount = 0;
+        mLatePacketCount = 0;
+        for (int i = 0; i < PID_COUNT; ++i) {
+            mContinuityCounters[i] = -1;
+        }
+
+        InetAddress address = InetAddress.getByName(host);
+        mSocket = new MulticastSocket(null);
+        mSocket.setReuseAddress(true);
+        mSocket.bind(new InetSocketAddress(port));
+        mSocket.setReceiveBufferSize(SOCKET_RECEIVE_BUFFER_SIZE);
+        mSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
+        if (address.isMulticastAddress()) {
+            mSocket.joinGroup(address);
+            mGroup = address;
+        }
+        mReceiveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, TAG);
+        mReceiveThread.setPriority(Thread.MAX_PRIORITY);
+        mReceiveThread.start();
+        return C.LENGTH_UNBOUNDED;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
+        }
+        mReadingThread = Thread.currentThread();
+        long readPosition = mReadPosition;
+        long available = mWritePosition - readPosition;
+        long deadlineNs = System.nanoTime() + READ_TIMEOUT_MS * 1000L * 1000L;
+        while (available == 0 || (mPrebuffering && available < mPrebufferSize)) {
+            if (mReceiveError != null) {
+                throw mReceiveError;
+            }
+            if (mClosed) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+            if (System.nanoTime() > deadlineNs) {
+                throw new SocketTimeoutException("No data received from " + mUri);
+            }
+            LockSupport.parkNanos(this, READ_POLL_INTERVAL_NS);
+            available = mWritePosition - readPosition;
+            if (available == 0) {
+                // The buffer has run dry. Build up some slack before reading on.
+                mPrebuffering = true;
+            }
+        }
+        mPrebuffering = false;
+
+        int length = (int) Math.min(readLength, available);
+        int index = (int) (readPosition % mBuffer.length);
+        int firstLength = Math.min(length, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, buffer, offset, firstLength);
+        if (firstLength < length) {
+            System.arraycopy(mBuffer, 0, buffer, offset + firstLength, length - firstLength);
+        }
+        mReadPosition = readPosition + length;
+        return length;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        if (mSocket != null) {
+            if (mGroup != null) {
+                try {
+                    mSocket.leaveGroup(mGroup);
+                } catch (IOException e) {
+                    // Closing the socket leaves the group anyway.
+                }
+                mGroup = null;
+            }
+            mSocket.close();
+            mSocket = null;
+        }
+        if (mReceiveThread != null) {
+            try {
+                mReceiveThread.join(SOCKET_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mReceiveThread = null;
+            Log.d(TAG, "Closed " + mUri + ": received=" + mReceivedPacketCount + ", dropped="
+                    + mDroppedPacketCount + ", late=" + mLatePacketCount);
+        }
+    }
+
+    @Override
+    public String getUri() {
+        return mUri;
+    }
+
+    /**
+     * Returns the number of TS packets stored in the buffer since {@link #open}.
+     */
+    public long getReceivedPacketCount() {
+        return mReceivedPacketCount;
+    }
+
+    /**
+     * Returns the number of TS packets dropped since {@link #open} because the buffer was full or
+     * they were malformed.
+     */
+    public long getDroppedPacketCount() {
+        return mDroppedPacketCount;
+    }
+
+    /**
+     * Returns the number of TS packets dropped since {@link #open} because they were duplicated or
+     * a later packet of the same PID had been received already.
+     */
+    public long getLatePacketCount() {
+        return mLatePacketCount;
+    }
+
+    private void receive() {
+        MulticastSocket socket = mSocket;
+        DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM_SIZE], MAX_DATAGRAM_SIZE);
+        while (!mClosed) {
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                if (!mClosed) {
+                    Log.e(TAG, "Failed to receive from " + mUri, e);
+                    mReceiveError = e;
+                    wakeUpReader();
+                }
+                return;
+            }
+            if (writeDatagram(packet.getData(), packet.getOffset(), packet.getLength())) {
+                wakeUpReader();
+            }
+        }
+    }
+
+    /**
+     * Stores the whole TS packets of a datagram into the ring buffer.
+     *
+     * @return {@code true} if any packet has been stored.
+     */
+    private boolean writeDatagram(byte[] data, int offset, int length) {
+        int end = offset + length;
+        long writePosition = mWritePosition;
+        int position = findPacketStart(data, offset, end);
+        boolean written = false;
+        while (position >= 0 && position + TS_PACKET_SIZE <= end) {
+            if ((data[position] & 0xff) != TS_SYNC_BYTE) {
+                // Lost sync in the middle of the datagram.
+                ++mDroppedPacketCount;
+                position = findPacketStart(data, position + 1, end);
+                continue;
+            }
+            if (isLate(data, position)) {
+                ++mLatePacketCount;
+            } else if (writePosition + TS_PACKET_SIZE - mReadPosition > mBuffer.length) {
+                ++mDroppedPacketCount;
+            } else {
+                // The buffer is a multiple of the packet size, so a packet never wraps around.
+                System.arraycopy(data, position, mBuffer, (int) (writePosition % mBuffer.length),
+                        TS_PACKET_SIZE);
+                writePosition += TS_PACKET_SIZE;
+                ++mReceivedPacketCount;
+                written = true;
+            }
+            position += TS_PACKET_SIZE;
+        }
+        if (position >= 0 && position < end) {
+            // A trailing partial packet.
+            ++mDroppedPacketCount;
+        }
+        // Publish the packets to the reader.
+        mWritePosition = writePosition;
+        return written;
+    }
+
+    /**
+     * Returns the offset of the first sync byte in {@code data} which is followed by another one a
+     * packet later, or by the end of the data, or -1 if there is none.
+     */
+    private static int findPacketStart(byte[] data, int start, int end) {
+        for (int i = start; i + TS_PACKET_SIZE <= end; ++i) {
+            if ((data[i] & 0xff) == TS_SYNC_BYTE && (i + TS_PACKET_SIZE == end
+                    || (data[i + TS_PACKET_SIZE] & 0xff) == TS_SYNC_BYTE
+                    || i + TS_PACKET_SIZE * 2 > end)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks the continuity counter of the packet at {@code position}, and returns {@code true} if
+     * the packet is a duplicate of the last one of the same PID, or shortly behind it, i.e. the
+     * packet has been reordered. Otherwise the counter is resynchronized to the packet, so that the
+     * packets after a loss are kept.
+     */
+    private boolean isLate(byte[] data, int position) {
+        int pid = ((data[position + 1] & 0x1f) << 8) | (data[position + 2] & 0xff);
+        boolean hasPayload = (data[position + 3] & 0x10) != 0;
+        if (pid == NULL_PID || !hasPayload) {
+            // The continuity counter only increments with a payload.
+            return false;
+        }
+        int counter = data[position + 3] & 0x0f;
+        int lastCounter = mContinuityCounters[pid];
+        int hash = hashPacket(data, position);
+        if (lastCounter >= 0 && !isDiscontinuity(data, position)) {
+            int delta = (counter - lastCounter) & 0x0f;
+            if ((delta == 0 && hash == mPacketHashes[pid])
+                    || delta >= 0x10 - MAX_REORDER_DISTANCE) {
+                if (DEBUG) {
+                    Log.d(TAG, "Late packet for PID " + pid + ": " + counter + " after "
+                            + lastCounter);
+                }
+                return true;
+            }
+            if (DEBUG && delta != 1) {
+                Log.d(TAG, "Lost packets for PID " + pid + ": " + counter + " after "
+                        + lastCounter);
+            }
+        }
+        mContinuityCounters[pid] = (byte) counter;
+        mPacketHashes[pid] = hash;
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the discontinuity indicator is set in the adaptation field of the
+     * packet at {@code position}, i.e. the continuity counter may start over.
+     */
+    private static boolean isDiscontinuity(byte[] data, int position) {
+        boolean hasAdaptationField = (data[position + 3] & 0x20) != 0;
+        return hasAdaptationField && (data[position + 4] & 0xff) > 0
+                && (data[position + 5] & 0x80) != 0;
+    }
+
+    private static int hashPacket(byte[] data, int position) {
+        int hash = 1;
+        for (int i = position; i < position + TS_PACKET_SIZE; ++i) {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+
+    private void wakeUpReader() {
+        Thread readingThread = mReadingThread;
+        if (readingThread != null) {
+            LockSupport.unpark(readingThread);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.player;
+
+import android.os.SystemClock;
+
+import com.google.android.exoplayer.ExoPlayer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Quality of experience metrics of the playback in a session, accumulated over all the players
+ * which the session uses.
+ *
+ * <p>The session reports tunes through {@link #onTuneStarted}, and the {@link TvInputPlayer} it is
+ * given to through {@link TvInputPlayer#setMetrics} reports everything else. The metrics can be
+ * read at any time from any thread.
+ */
+public final class PlaybackMetrics {
+    private static final long NOT_SET = -1;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    private final long mCreationTimeMs = SystemClock.elapsedRealtime();
+
+    private long mTuneStartTimeMs = NOT_SET;
+    private int mTuneCount;
+    private long mLastTuneTimeMs = NOT_SET;
+    private long mTotalTuneTimeMs;
+    private long mMaxTuneTimeMs;
+
+    private boolean mPlaying;
+    private boolean mFirstReady;
+    private long mPlayingStartTimeMs = NOT_SET;
+    private long mPlayingTimeMs;
+    private long mRebufferStartTimeMs = NOT_SET;
+    private int mRebufferCount;
+    private long mRebufferTimeMs;
+
+    private long mDroppedFrameCount;
+    private int mAudioUnderrunCount;
+
+    private int mDecoderInitCount;
+    private long mLastDecoderInitTimeMs = NOT_SET;
+    private long mTotalDecoderInitTimeMs;
+
+    private int mBitrate = -1;
+    private int mBitrateSwitchCount;
+
+    /**
+     * Called when the session starts to tune to a channel.
+     */
+    public synchronized void onTuneStarted() {
+        stopPlaying();
+        mTuneStartTimeMs = SystemClock.elapsedRealtime();
+        mFirstReady = false;
+        mRebufferStartTimeMs = NOT_SET;
+        mBitrate = -1;
+    }
+
+    synchronized void onDrawnToSurface() {
+        if (mTuneStartTimeMs == NOT_SET) {
+            return;
+        }
+        mLastTuneTimeMs = SystemClock.elapsedRealtime() - mTuneStartTimeMs;
+        mTuneStartTimeMs = NOT_SET;
+        ++mTuneCount;
+        mTotalTuneTimeMs += mLastTuneTimeMs;
+        mMaxTuneTimeMs = Math.max(mMaxTuneTimeMs, mLastTuneTimeMs);
+    }
+
+    synchronized void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+        long nowMs = SystemClock.elapsedRealtime();
+        boolean playing = playWhenReady && playbackState == ExoPlayer.STATE_READY;
+        if (playing && !mPlaying) {
+            mPlayingStartTimeMs = nowMs;
+        } else if (!playing && mPlaying) {
+            mPlayingTimeMs += nowMs - mPlayingStartTimeMs;
+        }
+        mPlaying = playing;
+
+        if (playbackState == ExoPlayer.STATE_READY) {
+            mFirstReady = true;
+            if (mRebufferStartTimeMs != NOT_SET) {
+                mRebufferTimeMs += nowMs - mRebufferStartTimeMs;
+                mRebufferStartTimeMs = NOT_SET;
+            }
+        } else if (playbackState == ExoPlayer.STATE_BUFFERING && playWhenReady && mFirstReady
+                && mRebufferStartTimeMs == NOT_SET) {
+            // Buffering before the first frame is part of the tune time, not a rebuffer.
+            ++mRebufferCount;
+            mRebufferStartTimeMs = nowMs;
+        } else if (playbackState == ExoPlayer.STATE_IDLE
+                || playbackState == ExoPlayer.STATE_ENDED) {
+            mRebufferStartTimeMs = NOT_SET;
+        }
+    }
+
+    synchronized void onDroppedFrames(int count) {
+        mDroppedFrameCount += count;
+    }
+
+    synchronized void onAudioTrackUnderrun() {
+        ++mAudioUnderrunCount;
+    }
+
+    synchronized void onDecoderInitialized(long initializationDurationMs) {
+        ++mDecoderInitCount;
+        mLastDecoderInitTimeMs = initializationDurationMs;
+        mTotalDecoderInitTimeMs += initializationDurationMs;
+    }
+
+    synchronized void onVideoBitrateChanged(int bitrate) {
+        if (mBitrate != -1 && bitrate != mBitrate) {
+            ++mBitrateSwitchCount;
+        }
+        mBitrate = bitrate;
+    }
+
+    /**
+     * Returns the number of tunes which reached the first frame.
+     */
+    public synchronized int getTuneCount() {
+        return mTuneCount;
+    }
+
+    /**
+     * Returns the time from the last tune to its first frame, or -1 if there has been none.
+     */
+    public synchronized long getLastTuneTimeMs() {
+        return mLastTuneTimeMs;
+    }
+
+    /**
+     * Returns the average time from a tune to its first frame, or -1 if there has been none.
+     */
+    public synchronized long getAverageTuneTimeMs() {
+        return mTuneCount == 0 ? NOT_SET : mTotalTuneTimeMs / mTuneCount;
+    }
+
+    public synchronized long getMaxTuneTimeMs() {
+        return mMaxTuneTimeMs;
+    }
+
+    /**
+     * Returns the number of times the playback stalled after it had started.
+     */
+    public synchronized int getRebufferCount() {
+        return mRebufferCount;
+    }
+
+    /**
+     * Returns the total time spent stalled, including an ongoing stall.
+     */
+    public synchronized long getRebufferTimeMs() {
+        return mRebufferStartTimeMs == NOT_SET ? mRebufferTimeMs
+                : mRebufferTimeMs + SystemClock.elapsedRealtime() - mRebufferStartTimeMs;
+    }
+
+    /**
+     * Returns the total time spent playing, i.e. ready with play when ready set.
+     */
+    public synchronized long getPlayingTimeMs() {
+        return mPlaying ? mPlayingTimeMs + SystemClock.elapsedRealtime() - mPlayingStartTimeMs
+                : mPlayingTimeMs;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Returns the number of dropped video frames per minute of playing time.
+     */
+    public synchronized float getDroppedFramesPerMinute() {
+        long playingTimeMs = getPlayingTimeMs();
+        return playingTimeMs == 0 ? 0 : (float) mDroppedFrameCount * MILLIS_PER_MINUTE
+                / playingTimeMs;
+    }
+
+    public synchronized int getAudioUnderrunCount() {
+        return mAudioUnderrunCount;
+    }
+
+    /**
+     * Returns the duration of the last decoder initialization, or -1 if there has been none.
+     */
+    public synchronized long getLastDecoderInitTimeMs() {
+        return mLastDecoderInitTimeMs;
+    }
+
+    /**
+     * Returns the average duration of a decoder initialization, or -1 if there has been none.
+     */
+    public synchronized long getAverageDecoderInitTimeMs() {
+        return mDecoderInitCount == 0 ? NOT_SET : mTotalDecoderInitTimeMs / mDecoderInitCount;
+    }
+
+    /**
+     * Returns the number of times adaptive playback switched to another video bitrate.
+     */
+    public synchronized int getBitrateSwitchCount() {
+        return mBitrateSwitchCount;
+    }
+
+    /**
+     * Returns the metrics as a JSON object, e.g. to be dumped to a file.
+     */
+    public synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("uptimeMs", SystemClock.elapsedRealtime() - mCreationTimeMs);
+            json.put("tuneCount", mTuneCount);
+            json.put("lastTuneTimeMs", mLastTuneTimeMs);
+            json.put("averageTuneTimeMs", getAverageTuneTimeMs());
+            json.put("maxTuneTimeMs", mMaxTuneTimeMs);
+            json.put("rebufferCount", mRebufferCount);
+            json.put("rebufferTimeMs", getRebufferTimeMs());
+            json.put("playingTimeMs", getPlayingTimeMs());
+            json.put("droppedFrameCount", mDroppedFrameCount);
+            json.put("droppedFramesPerMinute", getDroppedFramesPerMinute());
+            json.put("audioUnderrunCount", mAudioUnderrunCount);
+            json.put("lastDecoderInitTimeMs", mLastDecoderInitTimeMs);
+            json.put("averageDecoderInitTimeMs", getAverageDecoderInitTimeMs());
+            json.put("bitrateSwitchCount", mBitrateSwitchCount);
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers, which are never put.
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackMetrics" + toJson();
+    }
+
+    private void stopPlaying() {
+        if (mPlaying) {
+            mPlayingTimeMs += SystemClock.elapsedRealtime() - mPlayingStartTimeMs;
+            mPlaying = false;
+        }
+    }
+}
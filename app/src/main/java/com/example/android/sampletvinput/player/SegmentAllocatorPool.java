@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.player;
+
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of fixed-size buffer segments shared by all the players of the process.
+ *
+ * <p>Each player borrows segments through its own {@link Allocator} from {@link #newAllocator},
+ * which accounts for the bytes that player holds, as {@link com.google.android.exoplayer.LoadControl}
+ * expects. Released segments go back to the pool instead of to the garbage collector, so that the
+ * next player, e.g. after a channel change, reuses them. Up to {@code maxPooledBytes} of free
+ * segments are kept; the rest are dropped.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class SegmentAllocatorPool {
+    private final int mSegmentSize;
+    private final int mMaxPooledSegmentCount;
+    private final ArrayDeque<Allocation> mFreeSegments = new ArrayDeque<>();
+    private int mInUseSegmentCount;
+
+    /**
+     * @param segmentSize The size of each segment in bytes.
+     * @param maxPooledBytes The most memory kept in free segments, in bytes.
+     */
+    public SegmentAllocatorPool(int segmentSize, int maxPooledBytes) {
+        mSegmentSize = segmentSize;
+        mMaxPooledSegmentCount = maxPooledBytes / segmentSize;
+    }
+
+    /**
+     * Returns a new allocator which borrows the segments from this pool. Each player needs its own
+     * allocator.
+     */
+    public Allocator newAllocator() {
+        return new PooledAllocator();
+    }
+
+    /**
+     * Drops all the free segments, e.g. when the system is low on memory.
+     */
+    public synchronized void trim() {
+        mFreeSegments.clear();
+    }
+
+    /**
+     * Returns the number of bytes in free segments, waiting to be reused.
+     */
+    public synchronized long getPooledBytes() {
+        return (long) mFreeSegments.size() * mSegmentSize;
+    }
+
+    /**
+     * Returns the number of bytes in segments borrowed by the players.
+     */
+    public synchronized long getInUseBytes() {
+        return (long) mInUseSegmentCount * mSegmentSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentAllocatorPool{pooledBytes=" + getPooledBytes() + ", inUseBytes="
+                + getInUseBytes() + "}";
+    }
+
+    private synchronized Allocation obtain() {
+        ++mInUseSegmentCount;
+        Allocation allocation = mFreeSegments.pollLast();
+        return allocation != null ? allocation : new Allocation(new byte[mSegmentSize], 0);
+    }
+
+    private synchronized void recycle(Allocation allocation) {
+        --mInUseSegmentCount;
+        if (mFreeSegments.size() < mMaxPooledSegmentCount) {
+            mFreeSegments.addLast(allocation);
+        }
+    }
+
+    /**
+     * The view of the pool for a single player.
+     */
+    private class PooledAllocator implements Allocator {
+        private int mAllocatedCount;
+
+        @Override
+        public Allocation allocate() {
+            Allocation allocation = obtain();
+            synchronized (this) {
+                ++mAllocatedCount;
+            }
+            return allocation;
+        }
+
+        @Override
+        public void release(Allocation allocation) {
+            recycle(allocation);
+            synchronized (this) {
+                --mAllocatedCount;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void trim(int targetSize) {
+            // The free segments belong to the pool, which is bounded on its own.
+        }
+
+        @Override
+        public synchronized void blockWhileTotalBytesAllocatedExceeds(int limit)
+                throws InterruptedException {
+            while (getTotalBytesAllocated() > limit) {
+                wait();
+            }
+        }
+
+        @Override
+        public synchronized int getTotalBytesAllocated() {
+            return mAllocatedCount * mSegmentSize;
+        }
+
+        @Override
+        public int getIndividualAllocationLength() {
+            return mSegmentSize;
+        }
+    }
+}
@@ -43,8 +43,8 @@ import com.google.android.exoplayer.chunk.ChunkSampleSource;
 import com.google.android.exoplayer.chunk.ChunkSource;
 import com.google.android.exoplayer.chunk.Format;
 import com.google.android.exoplayer.chunk.FormatEvaluator;
-// import com.google.android.exoplayer.chunk.MultiTrackChunkSource;
 import com.google.android.exoplayer.dash.DashChunkSource;
+import com.google.android.exoplayer.dash.DefaultDashTrackSelector;
 import com.google.android.exoplayer.dash.mpd.AdaptationSet;
 import com.google.android.exoplayer.dash.mpd.MediaPresentationDescription;
 import com.google.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
@@ -69,7 +69,6 @@ import com.google.android.exoplayer.upstream.DataSource;
 import com.google.android.exoplayer.upstream.DefaultAllocator;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultUriDataSource;
-import com.google.android.exoplayer.upstream.UdpDataSource;
 import com.google.android.exoplayer.upstream.TransferListener;
 import com.google.android.exoplayer.util.ManifestFetcher;
 import com.google.android.exoplayer.util.MimeTypes;
@@ -86,6 +85,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class TvInputPlayer implements TextRenderer {
     private static final String TAG = "TvInputPlayer";
+    private static final boolean DEBUG = false;
 
     public static final int SOURCE_TYPE_HTTP_PROGRESSIVE = 0;
     public static final int SOURCE_TYPE_HLS = 1;
@@ -101,8 +101,17 @@ public class TvInputPlayer implements TextRenderer {
     private static final int AUDIO_BUFFER_SEGMENTS = 60;
     private static final int LIVE_EDGE_LATENCY_MS = 30000;
 
+    /**
+     * The most memory a player may use to buffer media, in bytes.
+     */
+    public static final int MAX_BUFFER_SIZE = VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE;
+
     private static final int NO_TRACK_SELECTED = -1;
 
+    // Shared by all the players so that the buffers outlive channel changes.
+    private static final SegmentAllocatorPool sAllocatorPool =
+            new SegmentAllocatorPool(BUFFER_SEGMENT_SIZE, MAX_BUFFER_SIZE);
+
     private final Handler mHandler;
     private final ExoPlayer mPlayer;
     private TrackRenderer mVideoRenderer;
@@ -112,16 +121,21 @@ public class TvInputPlayer implements TextRenderer {
     private float mVolume;
     private Surface mSurface;
     private Long mPendingSeekPosition;
+    private Uri mUri;
+    private int mSourceType;
+    private boolean mPrepared;
+    private boolean mHasError;
+    private PlaybackMetrics mMetrics;
     private final TvTrackInfo[][] mTvTracks = new TvTrackInfo[RENDERER_COUNT][];
     private final int[] mSelectedTvTracks = new int[RENDERER_COUNT];
-    // private final MultiTrackChunkSource[] mMultiTrackSources =
-    //         new MultiTrackChunkSource[RENDERER_COUNT];
 
     private final MediaCodecVideoTrackRenderer.EventListener mVideoRendererEventListener =
             new MediaCodecVideoTrackRenderer.EventListener() {
         @Override
         public void onDroppedFrames(int count, long elapsed) {
-            // Do nothing.
+            if (mMetrics != null) {
+                mMetrics.onDroppedFrames(count);
+            }
         }
 
         @Override
@@ -131,6 +145,9 @@ public class TvInputPlayer implements TextRenderer {
 
         @Override
         public void onDrawnToSurface(Surface surface) {
+            if (mMetrics != null) {
+                mMetrics.onDrawnToSurface();
+            }
             for(Callback callback : mCallbacks) {
                 callback.onDrawnToSurface(surface);
             }
@@ -138,23 +155,21 @@ public class TvInputPlayer implements TextRenderer {
 
         @Override
         public void onDecoderInitialized(String decoderName, long elapsedRealtimeMs, long initializationDurationMs) {
-            // Do nothing.
             Log.d(TAG, "onDecoderInitialized(" + decoderName + ", ...)");
+            if (mMetrics != null) {
+                mMetrics.onDecoderInitialized(initializationDurationMs);
+            }
         }
 
         @Override
         public void onDecoderInitializationError(
                 MediaCodecTrackRenderer.DecoderInitializationException e) {
-            for(Callback callback : mCallbacks) {
-                callback.onPlayerError(new ExoPlaybackException(e));
-            }
+            notifyPlayerError(new ExoPlaybackException(e));
         }
 
         @Override
         public void onCryptoError(MediaCodec.CryptoException e) {
-            for(Callback callback : mCallbacks) {
-                callback.onPlayerError(new ExoPlaybackException(e));
-            }
+            notifyPlayerError(new ExoPlaybackException(e));
         }
     };
 
@@ -173,6 +188,9 @@ public class TvInputPlayer implements TextRenderer {
         @Override
         public void onDecoderInitialized(String decoderName, long elapsedRealtimeMs, long initializationDurationMs) {
             Log.d(TAG, "MediaCodecAudioTrackRenderer#onDecoderInitialized(" + decoderName + ", ...)");
+            if (mMetrics != null) {
+                mMetrics.onDecoderInitialized(initializationDurationMs);
+            }
         }
 
         @Override
@@ -188,9 +206,14 @@ public class TvInputPlayer implements TextRenderer {
         @Override
         public void onAudioTrackUnderrun(int bufferSize, long bufferSizeMs, long elapsedSinceLastFeedMs) {
             Log.w(TAG, "onAudioTrackUnderrun");
+            if (mMetrics != null) {
+                mMetrics.onAudioTrackUnderrun();
+            }
         }
     };
 
+    private final ChunkEventListener mChunkEventListener = new ChunkEventListener();
+
     public TvInputPlayer() {
         mHandler = new Handler();
         for (int i = 0; i < RENDERER_COUNT; ++i) {
@@ -203,14 +226,18 @@ public class TvInputPlayer implements TextRenderer {
             @Override
             public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
                 Log.d(TAG, "onPlayerStateChanged(" + playWhenReady + ", " + playbackState + ")");
+                if (mMetrics != null) {
+                    mMetrics.onPlayerStateChanged(playWhenReady, playbackState);
+                }
                 for(Callback callback : mCallbacks) {
                     callback.onPlayerStateChanged(playWhenReady, playbackState);
                 }
-                // if (mPendingSeekPosition != null && playbackState != ExoPlayer.STATE_IDLE
-                //         && playbackState != ExoPlayer.STATE_PREPARING) {
-                //     seekTo(mPendingSeekPosition);
-                //     mPendingSeekPosition = null;
-                // }
+                if (mPendingSeekPosition != null && playbackState != ExoPlayer.STATE_IDLE
+                        && playbackState != ExoPlayer.STATE_PREPARING) {
+                    long position = mPendingSeekPosition;
+                    mPendingSeekPosition = null;
+                    seekTo(position);
+                }
             }
 
             @Override
@@ -223,9 +250,7 @@ public class TvInputPlayer implements TextRenderer {
             @Override
             public void onPlayerError(ExoPlaybackException e) {
                 Log.e(TAG, "Error:" + e);
-                for(Callback callback : mCallbacks) {
-                    callback.onPlayerError(e);
-                }
+                notifyPlayerError(e);
             }
         });
     }
@@ -239,12 +264,14 @@ public class TvInputPlayer implements TextRenderer {
 
     public void prepare(final Context context, final Uri uri, int sourceType) {
         Log.w(TAG, "PREPARE " + uri + " type " + sourceType);
+        mUri = uri;
+        mSourceType = sourceType;
         final String userAgent = getUserAgent(context);
 
         if (sourceType == SOURCE_TYPE_HTTP_PROGRESSIVE) {
             DataSource dataSource = new DefaultUriDataSource(context, userAgent);
             ExtractorSampleSource sampleSource =
-                new ExtractorSampleSource(uri, dataSource,
+                new ExtractorSampleSource(uri, dataSource, sAllocatorPool.newAllocator(),
                         VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
             mAudioRenderer = new MediaCodecAudioTrackRenderer(sampleSource);
             mVideoRenderer = new MediaCodecVideoTrackRenderer(context, sampleSource,
@@ -263,12 +290,14 @@ public class TvInputPlayer implements TextRenderer {
                         public void onSingleManifest(HlsPlaylist manifest) {
                             DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
                             DataSource dataSource = new DefaultUriDataSource(context, userAgent);
-                            LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
+                            LoadControl loadControl = new DefaultLoadControl(
+                                    sAllocatorPool.newAllocator());
                             HlsChunkSource chunkSource = new HlsChunkSource(dataSource,
                                     uri.toString(), manifest, bandwidthMeter, null,
                                     HlsChunkSource.ADAPTIVE_MODE_SPLICE);
                             HlsSampleSource sampleSource = new HlsSampleSource(chunkSource, loadControl,
-                                    VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
+                                    VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, mHandler,
+                                    mChunkEventListener, TvTrackInfo.TYPE_VIDEO);
                             mAudioRenderer = new MediaCodecAudioTrackRenderer(sampleSource);
                             mVideoRenderer = new MediaCodecVideoTrackRenderer(context, sampleSource,
                                     MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, mHandler,
@@ -285,133 +314,76 @@ public class TvInputPlayer implements TextRenderer {
 
                         @Override
                         public void onSingleManifestError(IOException e) {
-                            for (Callback callback : mCallbacks) {
-                                callback.onPlayerError(new ExoPlaybackException(e));
-                            }
+                            notifyPlayerError(new ExoPlaybackException(e));
                         }
                     });
-        // } else if (sourceType == SOURCE_TYPE_MPEG_DASH) {
-        //     MediaPresentationDescriptionParser parser = new MediaPresentationDescriptionParser();
-        //     DefaultUriDataSource manifestDataSource = new DefaultUriDataSource(context, userAgent);
-        //     final ManifestFetcher<MediaPresentationDescription> manifestFetcher =
-        //             new ManifestFetcher<>(uri.toString(), manifestDataSource, parser);
-        //     manifestFetcher.singleLoad(mHandler.getLooper(),
-        //             new ManifestFetcher.ManifestCallback<MediaPresentationDescription>() {
-        //         @Override
-        //         public void onSingleManifest(MediaPresentationDescription manifest) {
-        //             Period period = manifest.getPeriod(0);
-        //             LoadControl loadControl = new DefaultLoadControl(new DefaultAllocator(BUFFER_SEGMENT_SIZE));
-        //             DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
-
-        //             // Determine which video representations we should use for playback.
-        //             int maxDecodableFrameSize;
-        //             try {
-        //                 maxDecodableFrameSize = MediaCodecUtil.maxH264DecodableFrameSize();
-        //             } catch (MediaCodecUtil.DecoderQueryException e) {
-        //                 for (Callback callback : mCallbacks) {
-        //                     callback.onPlayerError(new ExoPlaybackException(e));
-        //                 }
-        //                 return;
-        //             }
-
-        //             int videoAdaptationSetIndex = period.getAdaptationSetIndex(
-        //                     AdaptationSet.TYPE_VIDEO);
-        //             List<Representation> videoRepresentations =
-        //                     period.adaptationSets.get(videoAdaptationSetIndex).representations;
-        //             ArrayList<Integer> videoRepresentationIndexList = new ArrayList<>();
-        //             for (int i = 0; i < videoRepresentations.size(); i++) {
-        //                 Format format = videoRepresentations.get(i).format;
-        //                 if (format.width * format.height > maxDecodableFrameSize) {
-        //                     // Filtering stream that device cannot play
-        //                 } else if (!format.mimeType.equals(MimeTypes.VIDEO_MP4)
-        //                         && !format.mimeType.equals(MimeTypes.VIDEO_WEBM)) {
-        //                     // Filtering unsupported mime type
-        //                 } else {
-        //                     videoRepresentationIndexList.add(i);
-        //                 }
-        //             }
-
-        //             // Build the video renderer.
-        //             if (videoRepresentationIndexList.isEmpty()) {
-        //                 mVideoRenderer = new DummyTrackRenderer();
-        //             } else {
-        //                 int[] videoRepresentationIndices = Util.toArray(
-        //                         videoRepresentationIndexList);
-        //                 DataSource videoDataSource = new DefaultUriDataSource(context, userAgent);
-        //                 ChunkSource videoChunkSource = new DashChunkSource(manifestFetcher,
-        //                         videoAdaptationSetIndex, videoRepresentationIndices,
-        //                         videoDataSource,
-        //                         new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter),
-        //                         LIVE_EDGE_LATENCY_MS);
-        //                 ChunkSampleSource videoSampleSource = new ChunkSampleSource(
-        //                         videoChunkSource, loadControl,
-        //                         VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, true);
-        //                 mVideoRenderer = new MediaCodecVideoTrackRenderer(videoSampleSource,
-        //                         MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, mHandler,
-        //                         mVideoRendererEventListener, 50);
-        //             }
-
-        //             // Build the audio chunk sources.
-        //             int audioAdaptationSetIndex = period.getAdaptationSetIndex(
-        //                     AdaptationSet.TYPE_AUDIO);
-        //             AdaptationSet audioAdaptationSet = period.adaptationSets.get(
-        //                     audioAdaptationSetIndex);
-        //             List<ChunkSource> audioChunkSourceList = new ArrayList<>();
-        //             List<TvTrackInfo> audioTrackList = new ArrayList<>();
-        //             if (audioAdaptationSet != null) {
-        //                 DataSource audioDataSource = new UriDataSource(userAgent, bandwidthMeter);
-        //                 FormatEvaluator audioEvaluator = new FormatEvaluator.FixedEvaluator();
-        //                 List<Representation> audioRepresentations =
-        //                         audioAdaptationSet.representations;
-        //                 for (int i = 0; i < audioRepresentations.size(); i++) {
-        //                     Format format = audioRepresentations.get(i).format;
-        //                     audioTrackList.add(new TvTrackInfo.Builder(TvTrackInfo.TYPE_AUDIO,
-        //                             Integer.toString(i))
-        //                             .setAudioChannelCount(format.numChannels)
-        //                             .setAudioSampleRate(format.audioSamplingRate)
-        //                             .setLanguage(format.language)
-        //                             .build());
-        //                     audioChunkSourceList.add(new DashChunkSource(manifestFetcher,
-        //                             audioAdaptationSetIndex, new int[] {i}, audioDataSource,
-        //                             audioEvaluator, LIVE_EDGE_LATENCY_MS));
-        //                 }
-        //             }
-
-        //             // Build the audio renderer.
-        //             final MultiTrackChunkSource audioChunkSource;
-        //             if (audioChunkSourceList.isEmpty()) {
-        //                 mAudioRenderer = new DummyTrackRenderer();
-        //             } else {
-        //                 audioChunkSource = new MultiTrackChunkSource(audioChunkSourceList);
-        //                 SampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource,
-        //                         loadControl, AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, true);
-        //                 mAudioRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource);
-        //                 TvTrackInfo[] tracks = new TvTrackInfo[audioTrackList.size()];
-        //                 audioTrackList.toArray(tracks);
-        //                 mTvTracks[TvTrackInfo.TYPE_AUDIO] = tracks;
-        //                 mSelectedTvTracks[TvTrackInfo.TYPE_AUDIO] = 0;
-        //                 mMultiTrackSources[TvTrackInfo.TYPE_AUDIO] = audioChunkSource;
-        //             }
-
-        //             // Build the text renderer.
-        //             mTextRenderer = new DummyTrackRenderer();
-
-        //             prepareInternal();
-        //         }
-
-        //         @Override
-        //         public void onSingleManifestError(IOException e) {
-        //             for (Callback callback : mCallbacks) {
-        //                 callback.onPlayerError(new ExoPlaybackException(e));
-        //             }
-        //         }
-        //     });
+        } else if (sourceType == SOURCE_TYPE_MPEG_DASH) {
+            MediaPresentationDescriptionParser parser = new MediaPresentationDescriptionParser();
+            DefaultUriDataSource manifestDataSource = new DefaultUriDataSource(context, userAgent);
+            final ManifestFetcher<MediaPresentationDescription> manifestFetcher =
+                    new ManifestFetcher<>(uri.toString(), manifestDataSource, parser);
+            manifestFetcher.singleLoad(mHandler.getLooper(),
+                    new ManifestFetcher.ManifestCallback<MediaPresentationDescription>() {
+                @Override
+                public void onSingleManifest(MediaPresentationDescription manifest) {
+                    LoadControl loadControl = new DefaultLoadControl(
+                            sAllocatorPool.newAllocator());
+                    // Measures the throughput of all the chunk downloads, which drives the
+                    // adaptive selection of the video representation.
+                    DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+
+                    // Build the video renderer. The representations which the device can't
+                    // decode, or which exceed the display, are filtered out by the selector.
+                    DataSource videoDataSource = new DefaultUriDataSource(context, bandwidthMeter,
+                            userAgent);
+                    ChunkSource videoChunkSource = new DashChunkSource(manifestFetcher,
+                            DefaultDashTrackSelector.newVideoInstance(context, true, false),
+                            videoDataSource, new FormatEvaluator.AdaptiveEvaluator(bandwidthMeter),
+                            LIVE_EDGE_LATENCY_MS, 0, mHandler, null);
+                    ChunkSampleSource videoSampleSource = new ChunkSampleSource(videoChunkSource,
+                            loadControl, VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE, mHandler,
+                            mChunkEventListener, TvTrackInfo.TYPE_VIDEO);
+                    mVideoRenderer = new MediaCodecVideoTrackRenderer(context, videoSampleSource,
+                            MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 0, mHandler,
+                            mVideoRendererEventListener, 50);
+
+                    // Build the audio renderer. Each audio representation is a separate track,
+                    // in the order of the manifest.
+                    TvTrackInfo[] audioTracks = getDashAudioTracks(manifest);
+                    if (audioTracks.length == 0) {
+                        mAudioRenderer = new DummyTrackRenderer();
+                    } else {
+                        DataSource audioDataSource = new DefaultUriDataSource(context,
+                                bandwidthMeter, userAgent);
+                        ChunkSource audioChunkSource = new DashChunkSource(manifestFetcher,
+                                DefaultDashTrackSelector.newAudioInstance(), audioDataSource, null,
+                                LIVE_EDGE_LATENCY_MS, 0, mHandler, null);
+                        SampleSource audioSampleSource = new ChunkSampleSource(audioChunkSource,
+                                loadControl, AUDIO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE);
+                        mAudioRenderer = new MediaCodecAudioTrackRenderer(audioSampleSource,
+                                mHandler, mAudioRendererEventListener);
+                        mTvTracks[TvTrackInfo.TYPE_AUDIO] = audioTracks;
+                        mSelectedTvTracks[TvTrackInfo.TYPE_AUDIO] = 0;
+                    }
+
+                    // Build the text renderer.
+                    mTextRenderer = new DummyTrackRenderer();
+
+                    prepareInternal();
+                }
+
+                @Override
+                public void onSingleManifestError(IOException e) {
+                    notifyPlayerError(new ExoPlaybackException(e));
+                }
+            });
 
         } else if (sourceType == SOURCE_TYPE_MPEGTS_MCAST) {
             final int requestedBufferSize = VIDEO_BUFFER_SEGMENTS * BUFFER_SEGMENT_SIZE;
-            DataSource dataSource = new UdpDataSource(null);
+            DataSource dataSource = new MulticastTsDataSource();
             ExtractorSampleSource sampleSource =
-                new ExtractorSampleSource(uri, dataSource, requestedBufferSize, new TsExtractor(new PtsTimestampAdjuster(0), true));
+                new ExtractorSampleSource(uri, dataSource, sAllocatorPool.newAllocator(),
+                        requestedBufferSize, new TsExtractor(new PtsTimestampAdjuster(0), true));
                 // new ExtractorSampleSource(uri, dataSource, requestedBufferSize);
             mAudioRenderer = new MediaCodecAudioTrackRenderer(sampleSource, null, mAudioRendererEventListener);
             mVideoRenderer = new MediaCodecVideoTrackRenderer(context, sampleSource,
@@ -425,6 +397,35 @@ public class TvInputPlayer implements TextRenderer {
         }
     }
 
+    /**
+     * Returns the URI given to {@link #prepare}, or {@code null} if it hasn't been called.
+     */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * Returns the source type given to {@link #prepare}.
+     */
+    public int getSourceType() {
+        return mSourceType;
+    }
+
+    /**
+     * Returns {@code true} if the renderers have been built and {@link Callback#onPrepared} has
+     * been called. This may happen asynchronously after {@link #prepare}, e.g. for HLS.
+     */
+    public boolean isPrepared() {
+        return mPrepared;
+    }
+
+    /**
+     * Returns {@code true} if an error has been reported through {@link Callback#onPlayerError}.
+     */
+    public boolean hasError() {
+        return mHasError;
+    }
+
     public TvTrackInfo[] getTracks(int trackType) {
         if (trackType < 0 || trackType >= mTvTracks.length) {
             throw new IllegalArgumentException("Illegal track type: " + trackType);
@@ -449,18 +450,21 @@ public class TvInputPlayer implements TextRenderer {
         if (trackId == null) {
             mPlayer.setRendererEnabled(trackType, false);
         } else {
-            // int trackIndex = Integer.parseInt(trackId);
-            // if (mMultiTrackSources[trackType] == null) {
-                mPlayer.setRendererEnabled(trackType, true);
-            // } else {
-            //     boolean playWhenReady = mPlayer.getPlayWhenReady();
-            //     mPlayer.setPlayWhenReady(false);
-            //     mPlayer.setRendererEnabled(trackType, false);
-            //     mPlayer.sendMessage(mMultiTrackSources[trackType],
-            //             MultiTrackChunkSource.MSG_SELECT_TRACK, trackIndex);
-            //     mPlayer.setRendererEnabled(trackType, true);
-            //     mPlayer.setPlayWhenReady(playWhenReady);
-            // }
+            if (mTvTracks[trackType].length > 1) {
+                // The IDs of the tracks are their indices in the sample source, e.g. for DASH.
+                int trackIndex;
+                try {
+                    trackIndex = Integer.parseInt(trackId);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (trackIndex < 0 || trackIndex >= mTvTracks[trackType].length) {
+                    return false;
+                }
+                mPlayer.setSelectedTrack(trackType, trackIndex);
+                mSelectedTvTracks[trackType] = trackIndex;
+            }
+            mPlayer.setRendererEnabled(trackType, true);
         }
         return true;
     }
@@ -485,14 +489,27 @@ public class TvInputPlayer implements TextRenderer {
         }
     }
 
+    /**
+     * Seeks to {@code position} in milliseconds. If the player isn't prepared yet, the seek is
+     * queued and issued once it is. Live streams, whose duration is unknown, aren't seeked.
+     *
+     * <p>A progressive source is seekable by nature, so the position is handed to the player while
+     * it is still preparing. The renderers then start at that position, and the extractor maps it
+     * to a byte offset, so the media before it is neither downloaded nor decoded.
+     */
     public void seekTo(long position) {
-        // if (isPlayerPrepared(mPlayer)) {  // The player doesn't know the duration until prepared.
-        //     if (mPlayer.getDuration() != ExoPlayer.UNKNOWN_TIME) {
-        //         mPlayer.seekTo(position);
-        //     }
-        // } else {
-        //     mPendingSeekPosition = position;
-        // }
+        if (isPlayerPrepared(mPlayer)) {  // The player doesn't know the duration until prepared.
+            long duration = mPlayer.getDuration();
+            if (duration != ExoPlayer.UNKNOWN_TIME && position < duration) {
+                mPlayer.seekTo(position);
+            }
+        } else if (mSourceType == SOURCE_TYPE_HTTP_PROGRESSIVE
+                && mPlayer.getPlaybackState() == ExoPlayer.STATE_PREPARING) {
+            mPendingSeekPosition = null;
+            mPlayer.seekTo(position);
+        } else {
+            mPendingSeekPosition = position;
+        }
     }
 
     public void stop() {
@@ -501,6 +518,24 @@ public class TvInputPlayer implements TextRenderer {
 
     public void release() {
         mPlayer.release();
+        if (DEBUG) {
+            Log.d(TAG, "Released, " + sAllocatorPool);
+        }
+    }
+
+    /**
+     * Returns the pool of the buffers of all the players.
+     */
+    public static SegmentAllocatorPool getAllocatorPool() {
+        return sAllocatorPool;
+    }
+
+    /**
+     * Sets the metrics to which the playback events of this player are reported, or {@code null}
+     * to stop reporting.
+     */
+    public void setMetrics(PlaybackMetrics metrics) {
+        mMetrics = metrics;
     }
 
     public void addCallback(Callback callback) {
@@ -511,6 +546,13 @@ public class TvInputPlayer implements TextRenderer {
         mCallbacks.remove(callback);
     }
 
+    private void notifyPlayerError(ExoPlaybackException e) {
+        mHasError = true;
+        for (Callback callback : mCallbacks) {
+            callback.onPlayerError(e);
+        }
+    }
+
     private void prepareInternal() {
         mPlayer.prepare(mAudioRenderer, mVideoRenderer, mTextRenderer);
         mPlayer.sendMessage(mAudioRenderer, MediaCodecAudioTrackRenderer.MSG_SET_VOLUME,
@@ -519,11 +561,41 @@ public class TvInputPlayer implements TextRenderer {
                 mSurface);
         // Disable text track by default.
         mPlayer.setRendererEnabled(TvTrackInfo.TYPE_SUBTITLE, false);
+        mPrepared = true;
         for (Callback callback : mCallbacks) {
             callback.onPrepared();
         }
     }
 
+    /**
+     * Returns a track for each audio representation of the first period of {@code manifest}, in
+     * the order in which {@link DefaultDashTrackSelector#newAudioInstance} selects them.
+     */
+    private static TvTrackInfo[] getDashAudioTracks(MediaPresentationDescription manifest) {
+        List<TvTrackInfo> tracks = new ArrayList<>();
+        for (AdaptationSet adaptationSet : manifest.getPeriod(0).adaptationSets) {
+            if (adaptationSet.type != AdaptationSet.TYPE_AUDIO) {
+                continue;
+            }
+            for (Representation representation : adaptationSet.representations) {
+                Format format = representation.format;
+                TvTrackInfo.Builder builder = new TvTrackInfo.Builder(TvTrackInfo.TYPE_AUDIO,
+                        Integer.toString(tracks.size()));
+                if (format.audioChannels > 0) {
+                    builder.setAudioChannelCount(format.audioChannels);
+                }
+                if (format.audioSamplingRate > 0) {
+                    builder.setAudioSampleRate(format.audioSamplingRate);
+                }
+                if (format.language != null) {
+                    builder.setLanguage(format.language);
+                }
+                tracks.add(builder.build());
+            }
+        }
+        return tracks.toArray(new TvTrackInfo[tracks.size()]);
+    }
+
     private static String getUserAgent(Context context) {
         String versionName;
         try {
@@ -542,6 +614,49 @@ public class TvInputPlayer implements TextRenderer {
         return state != ExoPlayer.STATE_PREPARING && state != ExoPlayer.STATE_IDLE;
     }
 
+    /**
+     * Reports the switches between the video formats of the adaptive sources to the metrics.
+     */
+    private class ChunkEventListener implements ChunkSampleSource.EventListener,
+            HlsSampleSource.EventListener {
+        @Override
+        public void onLoadStarted(int sourceId, long length, int type, int trigger, Format format,
+                long mediaStartTimeMs, long mediaEndTimeMs) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger,
+                Format format, long mediaStartTimeMs, long mediaEndTimeMs,
+                long elapsedRealtimeMs, long loadDurationMs) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onLoadCanceled(int sourceId, long bytesLoaded) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onLoadError(int sourceId, IOException e) {
+            Log.w(TAG, "onLoadError(" + sourceId + ")", e);
+        }
+
+        @Override
+        public void onUpstreamDiscarded(int sourceId, long mediaStartTimeMs,
+                long mediaEndTimeMs) {
+            // Do nothing.
+        }
+
+        @Override
+        public void onDownstreamFormatChanged(int sourceId, Format format, int trigger,
+                long mediaTimeMs) {
+            if (mMetrics != null && sourceId == TvTrackInfo.TYPE_VIDEO && format != null) {
+                mMetrics.onVideoBitrateChanged(format.bitrate);
+            }
+        }
+    }
+
     public interface Callback {
         void onPrepared();
         void onPlayerStateChanged(boolean playWhenReady, int state);
@@ -0,0 +1,434 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.rich;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A disk-backed cache for feeds fetched over HTTP.
+ *
+ * <p>The body of the last successful response is stored together with its ETag and Last-Modified
+ * headers. The next fetch sends them back as If-None-Match and If-Modified-Since, and the stored
+ * body is served if the server answers 304 Not Modified or can't be reached. New bodies are written
+ * to the cache while the caller reads them, so parsing doesn't have to wait for the download.
+ * Gzip-encoded responses are accepted and stored decoded.
+ *
+ * <p>Concurrent fetches of the same URL are safe. Each download is written to a temporary file of
+ * its own, and a body is only ever replaced together with its headers, under the lock of its URL.
+ * The locks are striped, so URLs may share one but their number stays fixed.
+ *
+ * <p>This class only depends on {@link java.net}, so it can be exercised against any local HTTP
+ * server.
+ */
+public class HttpFeedCache {
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last-modified";
+    private static final String ENCODING_GZIP = "gzip";
+    // Bytes that may still be read on close to reach the end of a body which the reader didn't
+    // fully consume, e.g. trailing whitespace after the root element of a document.
+    private static final int MAX_DRAIN_ON_CLOSE_BYTES = 64 * 1024;
+    private static final int LOCK_STRIPE_COUNT = 16;
+
+    private final File mDirectory;
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final Object[] mLocks = new Object[LOCK_STRIPE_COUNT];
+
+    public HttpFeedCache(File directory, int connectTimeoutMs, int readTimeoutMs) {
+        mDirectory = directory;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        for (int i = 0; i < mLocks.length; ++i) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Fetches {@code url}, revalidating the cached copy if there is one.
+     *
+     * @throws IOException if the server can't be reached or fails, and nothing has been cached.
+     */
+    public Response fetch(URL url) throws IOException {
+        String key = getKey(url);
+        Object lock = getLock(key);
+        File bodyFile = new File(mDirectory, key + BODY_SUFFIX);
+        File metaFile = new File(mDirectory, key + META_SUFFIX);
+        // Open the cached body together with its headers, so that a concurrent fetch which
+        // replaces them can't pair one with the other's.
+        Properties meta = new Properties();
+        InputStream cachedBody = null;
+        synchronized (lock) {
+            if (bodyFile.isFile()) {
+                meta = readMeta(metaFile);
+                try {
+                    cachedBody = new FileInputStream(bodyFile);
+                } catch (IOException e) {
+                    meta.clear();
+                }
+            }
+        }
+
+        HttpURLConnection connection;
+        int responseCode;
+        try {
+            URLConnection urlConnection = url.openConnection();
+            if (!(urlConnection instanceof HttpURLConnection)) {
+                throw new IOException("Not an HTTP URL: " + url);
+            }
+            connection = (HttpURLConnection) urlConnection;
+            connection.setConnectTimeout(mConnectTimeoutMs);
+            connection.setReadTimeout(mReadTimeoutMs);
+            connection.setRequestProperty("Accept-Encoding", ENCODING_GZIP);
+            String eTag = meta.getProperty(META_ETAG);
+            if (eTag != null) {
+                connection.setRequestProperty("If-None-Match", eTag);
+            }
+            String lastModified = meta.getProperty(META_LAST_MODIFIED);
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            responseCode = connection.getResponseCode();
+        } catch (IOException e) {
+            if (cachedBody != null) {
+                // Better to serve a stale feed than nothing at all.
+                return new Response(cachedBody, getTag(meta), true);
+            }
+            throw e;
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedBody != null) {
+            // A 304 may carry an updated validator.
+            Properties newMeta = getMeta(connection, meta);
+            connection.disconnect();
+            if (!newMeta.equals(meta)) {
+                synchronized (lock) {
+                    // Unless the body has been replaced in the meantime.
+                    if (readMeta(metaFile).equals(meta)) {
+                        writeMeta(metaFile, newMeta);
+                    }
+                }
+            }
+            return new Response(cachedBody, getTag(newMeta), true);
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            if (cachedBody != null) {
+                // A server error is no reason to drop the feed either.
+                return new Response(cachedBody, getTag(meta), true);
+            }
+            throw new IOException("Unexpected response " + responseCode + " for " + url);
+        }
+        if (cachedBody != null) {
+            cachedBody.close();
+        }
+
+        InputStream inputStream = connection.getInputStream();
+        // A gzip stream checks its own length, but a plain body cut short may just look ended.
+        long contentLength = -1;
+        if (ENCODING_GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+            inputStream = new GZIPInputStream(inputStream);
+        } else {
+            contentLength = getContentLength(connection);
+        }
+        Properties newMeta = getMeta(connection, new Properties());
+        if (newMeta.isEmpty()) {
+            // Without a validator the body can never be revalidated, so don't keep it.
+            return new Response(inputStream, null, false);
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return new Response(inputStream, getTag(newMeta), false);
+        }
+        return new Response(
+                new CachingInputStream(inputStream, contentLength, bodyFile, metaFile, newMeta,
+                        lock),
+                getTag(newMeta), false);
+    }
+
+    private Object getLock(String key) {
+        return mLocks[(key.hashCode() & Integer.MAX_VALUE) % mLocks.length];
+    }
+
+    private static long getContentLength(HttpURLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // Unknown length.
+            }
+        }
+        return -1;
+    }
+
+    private static Properties getMeta(HttpURLConnection connection, Properties defaults) {
+        Properties meta = new Properties();
+        meta.putAll(defaults);
+        String eTag = connection.getHeaderField("ETag");
+        if (eTag != null) {
+            meta.setProperty(META_ETAG, eTag);
+        }
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (lastModified != null) {
+            meta.setProperty(META_LAST_MODIFIED, lastModified);
+        }
+        return meta;
+    }
+
+    /**
+     * Returns a tag which identifies the version of the body described by {@code meta}.
+     */
+    private static String getTag(Properties meta) {
+        String eTag = meta.getProperty(META_ETAG);
+        if (eTag != null) {
+            return "etag:" + eTag;
+        }
+        String lastModified = meta.getProperty(META_LAST_MODIFIED);
+        if (lastModified != null) {
+            return "last-modified:" + lastModified;
+        }
+        return null;
+    }
+
+    private static Properties readMeta(File metaFile) {
+        Properties meta = new Properties();
+        try (InputStream inputStream = new FileInputStream(metaFile)) {
+            meta.load(inputStream);
+        } catch (IOException e) {
+            // Revalidate nothing. The feed is fetched in full.
+            meta.clear();
+        }
+        return meta;
+    }
+
+    private static void writeMeta(File metaFile, Properties meta) throws IOException {
+        File tempFile = File.createTempFile(metaFile.getName(), TEMP_SUFFIX,
+                metaFile.getParentFile());
+        try (OutputStream outputStream = new FileOutputStream(tempFile)) {
+            meta.store(outputStream, null);
+        }
+        if (!tempFile.renameTo(metaFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile + " to " + metaFile);
+        }
+    }
+
+    private static String getKey(URL url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    url.toString().getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The body of a feed, either fresh from the network or from the cache.
+     */
+    public static final class Response implements Closeable {
+        private final InputStream mInputStream;
+        private final String mTag;
+        private final boolean mFromCache;
+
+        private Response(InputStream inputStream, String tag, boolean fromCache) {
+            mInputStream = inputStream;
+            mTag = tag;
+            mFromCache = fromCache;
+        }
+
+        public InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        /**
+         * Returns a tag derived from the ETag or Last-Modified header which changes whenever the
+         * body changes, or {@code null} if the server provided neither.
+         */
+        public String getTag() {
+            return mTag;
+        }
+
+        /**
+         * Returns {@code true} if the body is served from the cache, i.e. the server answered
+         * 304 Not Modified or couldn't be reached.
+         */
+        public boolean isFromCache() {
+            return mFromCache;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mInputStream.close();
+        }
+    }
+
+    /**
+     * Copies everything read from the network into a temporary file, which replaces the cached
+     * body and its headers once the end of the stream has been reached. A body shorter than its
+     * Content-Length fails with an {@link IOException} instead of ending.
+     */
+    private static class CachingInputStream extends FilterInputStream {
+        private final File mBodyFile;
+        private final File mMetaFile;
+        private final File mTempFile;
+        private final Properties mMeta;
+        private final Object mLock;
+        private final long mContentLength;
+        private long mLength;
+        private OutputStream mOutputStream;
+        private boolean mEndOfStream;
+
+        CachingInputStream(InputStream inputStream, long contentLength, File bodyFile,
+                File metaFile, Properties meta, Object lock) throws IOException {
+            super(inputStream);
+            mContentLength = contentLength;
+            mBodyFile = bodyFile;
+            mMetaFile = metaFile;
+            mTempFile = File.createTempFile(bodyFile.getName(), TEMP_SUFFIX,
+                    bodyFile.getParentFile());
+            mMeta = meta;
+            mLock = lock;
+            mOutputStream = new FileOutputStream(mTempFile);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                onEndOfStream();
+            } else {
+                ++mLength;
+                if (mOutputStream != null) {
+                    mOutputStream.write(b);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int len = super.read(buffer, offset, count);
+            if (len == -1) {
+                onEndOfStream();
+            } else {
+                mLength += len;
+                if (mOutputStream != null) {
+                    mOutputStream.write(buffer, offset, len);
+                }
+            }
+            return len;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Read through the skipped bytes so that they end up in the cache as well.
+            byte[] buffer = new byte[(int) Math.min(count, 8 * 1024)];
+            long skipped = 0;
+            while (skipped < count) {
+                int len = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+                if (len == -1) {
+                    break;
+                }
+                skipped += len;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mOutputStream == null) {
+                return;
+            }
+            try {
+                drain();
+            } catch (IOException e) {
+                // The body is incomplete and discarded below.
+            }
+            OutputStream outputStream = mOutputStream;
+            mOutputStream = null;
+            try {
+                outputStream.close();
+                if (mEndOfStream) {
+                    commit();
+                }
+            } finally {
+                mTempFile.delete();
+                super.close();
+            }
+        }
+
+        private void onEndOfStream() throws IOException {
+            if (mContentLength >= 0 && mLength != mContentLength) {
+                throw new IOException("Expected " + mContentLength + " bytes but got " + mLength);
+            }
+            mEndOfStream = true;
+        }
+
+        private void commit() throws IOException {
+            synchronized (mLock) {
+                if (!mTempFile.renameTo(mBodyFile)) {
+                    return;
+                }
+                try {
+                    writeMeta(mMetaFile, mMeta);
+                } catch (IOException e) {
+                    // The old headers must not be sent back for the new body.
+                    mBodyFile.delete();
+                    throw e;
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            byte[] buffer = new byte[4 * 1024];
+            int drained = 0;
+            while (!mEndOfStream && drained < MAX_DRAIN_ON_CLOSE_BYTES) {
+                int len = read(buffer, 0, buffer.length);
+                if (len > 0) {
+                    drained += len;
+                }
+            }
+        }
+    }
+}
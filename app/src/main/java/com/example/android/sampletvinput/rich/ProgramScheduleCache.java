@@ -0,0 +1,293 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.rich;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.android.sampletvinput.TvContractUtils;
+import com.example.android.sampletvinput.data.Channel;
+import com.example.android.sampletvinput.data.Program;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory cache of the upcoming programs of the recently tuned channels, and of the channel
+ * lineups of the inputs, shared by all the sessions of {@link RichTvInputService}.
+ *
+ * <p>For each channel, the programs of a rolling window starting at the time of the lookup are
+ * read from TvProvider at once. The current and next programs are then answered from memory until
+ * the window has passed, so neither zapping back to a channel nor a program boundary costs a
+ * provider query. Any change to the programs in TvProvider, e.g. by a sync, drops all the cached
+ * schedules, and any change to the channels drops the cached lineups.
+ *
+ * <p>This class is thread-safe.
+ */
+class ProgramScheduleCache {
+    private static final String TAG = "ProgramScheduleCache";
+    private static final boolean DEBUG = false;
+
+    private static final long WINDOW_MS = 6 * 60 * 60 * 1000L;  // 6 hours
+    private static final int MAX_CHANNEL_COUNT = 32;
+
+    private final ContentResolver mResolver;
+    private final ContentObserver mObserver;
+    private final Map<Long, Schedule> mSchedules =
+            new LinkedHashMap<Long, Schedule>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Schedule> eldest) {
+                    return size() > MAX_CHANNEL_COUNT;
+                }
+            };
+    // Incremented on every invalidation so that a schedule loaded across a change is not cached.
+    private int mGeneration;
+    // The channels of each input, sorted by display number.
+    private final Map<String, List<Channel>> mLineups = new HashMap<>();
+    private int mLineupGeneration;
+
+    /**
+     * @param handler The handler on which the changes to TvProvider are observed.
+     */
+    ProgramScheduleCache(ContentResolver resolver, Handler handler) {
+        mResolver = resolver;
+        mObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                boolean channelChange = uri != null && isChannelUri(uri);
+                if (uri == null || channelChange) {
+                    invalidateLineups();
+                }
+                if (!channelChange) {
+                    invalidate();
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts watching TvProvider for program and channel changes.
+     */
+    void start() {
+        mResolver.registerContentObserver(TvContract.Programs.CONTENT_URI, true, mObserver);
+        mResolver.registerContentObserver(TvContract.Channels.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Stops watching TvProvider and drops the cache.
+     */
+    void release() {
+        mResolver.unregisterContentObserver(mObserver);
+        invalidate();
+        invalidateLineups();
+    }
+
+    /**
+     * Drops all the cached schedules.
+     */
+    void invalidate() {
+        synchronized (mSchedules) {
+            ++mGeneration;
+            mSchedules.clear();
+        }
+    }
+
+    /**
+     * Drops all the cached channel lineups.
+     */
+    void invalidateLineups() {
+        synchronized (mLineups) {
+            ++mLineupGeneration;
+            mLineups.clear();
+        }
+    }
+
+    /**
+     * Returns the channels of the given input, sorted by display number. The list must not be
+     * modified.
+     */
+    List<Channel> getChannels(String inputId) {
+        int generation;
+        synchronized (mLineups) {
+            List<Channel> channels = mLineups.get(inputId);
+            if (channels != null) {
+                return channels;
+            }
+            generation = mLineupGeneration;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Loading the channels of " + inputId);
+        }
+        List<Channel> channels = new ArrayList<>();
+        for (Channel channel : TvContractUtils.getChannels(mResolver)) {
+            if (inputId.equals(channel.getInputId())) {
+                channels.add(channel);
+            }
+        }
+        Collections.sort(channels, DISPLAY_NUMBER_COMPARATOR);
+        channels = Collections.unmodifiableList(channels);
+        synchronized (mLineups) {
+            if (generation == mLineupGeneration) {
+                mLineups.put(inputId, channels);
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * Returns the program of the given channel which is on the air at {@code timeMs}, or
+     * {@code null} if there is none.
+     */
+    Program getCurrentProgram(Uri channelUri, long timeMs) {
+        return getSchedule(channelUri, timeMs).getCurrentProgram(timeMs);
+    }
+
+    /**
+     * Returns the first program of the given channel which starts after {@code timeMs}, or
+     * {@code null} if there is none within the cached window.
+     */
+    Program getNextProgram(Uri channelUri, long timeMs) {
+        return getSchedule(channelUri, timeMs).getNextProgram(timeMs);
+    }
+
+    private static boolean isChannelUri(Uri uri) {
+        Uri channelsUri = TvContract.Channels.CONTENT_URI;
+        List<String> segments = uri.getPathSegments();
+        return channelsUri.getAuthority().equals(uri.getAuthority()) && !segments.isEmpty()
+                && channelsUri.getPathSegments().get(0).equals(segments.get(0));
+    }
+
+    private Schedule getSchedule(Uri channelUri, long timeMs) {
+        long channelId = ContentUris.parseId(channelUri);
+        int generation;
+        synchronized (mSchedules) {
+            Schedule schedule = mSchedules.get(channelId);
+            if (schedule != null && schedule.covers(timeMs)) {
+                return schedule;
+            }
+            generation = mGeneration;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Loading the schedule of " + channelUri + " from " + timeMs);
+        }
+        long endMs = timeMs + WINDOW_MS;
+        Schedule schedule = new Schedule(timeMs, endMs, TvContractUtils.getPrograms(mResolver,
+                channelUri, timeMs, endMs, TvContractUtils.PLAYBACK_PROGRAM_PROJECTION));
+        synchronized (mSchedules) {
+            if (generation == mGeneration) {
+                mSchedules.put(channelId, schedule);
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * The programs of a channel which overlap with a time range, in chronological order.
+     */
+    private static final class Schedule {
+        private final long mStartMs;
+        private final long mEndMs;
+        private final Program[] mPrograms;
+
+        Schedule(long startMs, long endMs, List<Program> programs) {
+            mStartMs = startMs;
+            mEndMs = endMs;
+            mPrograms = programs.toArray(new Program[programs.size()]);
+        }
+
+        boolean covers(long timeMs) {
+            return timeMs >= mStartMs && timeMs < mEndMs;
+        }
+
+        Program getCurrentProgram(long timeMs) {
+            int index = findFirstEndingAfter(timeMs);
+            if (index < mPrograms.length && mPrograms[index].getStartTimeUtcMillis() <= timeMs) {
+                return mPrograms[index];
+            }
+            return null;
+        }
+
+        Program getNextProgram(long timeMs) {
+            for (int i = findFirstEndingAfter(timeMs); i < mPrograms.length; ++i) {
+                if (mPrograms[i].getStartTimeUtcMillis() > timeMs) {
+                    return mPrograms[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the index of the first program which ends after {@code timeMs}. The programs of
+         * a channel don't overlap, so their end times are sorted as well.
+         */
+        private int findFirstEndingAfter(long timeMs) {
+            int low = 0;
+            int high = mPrograms.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPrograms[mid].getEndTimeUtcMillis() <= timeMs) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Orders channels by their display numbers, comparing the major and minor parts numerically,
+     * e.g. "2-1" < "2-10" < "10".
+     */
+    private static final Comparator<Channel> DISPLAY_NUMBER_COMPARATOR = new Comparator<Channel>() {
+        @Override
+        public int compare(Channel lhs, Channel rhs) {
+            String[] lhsParts = splitDisplayNumber(lhs.getDisplayNumber());
+            String[] rhsParts = splitDisplayNumber(rhs.getDisplayNumber());
+            for (int i = 0; i < Math.min(lhsParts.length, rhsParts.length); ++i) {
+                int result = compareDisplayNumberParts(lhsParts[i], rhsParts[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return lhsParts.length - rhsParts.length;
+        }
+
+        private String[] splitDisplayNumber(String displayNumber) {
+            return displayNumber == null ? new String[0] : displayNumber.split("[-. ]");
+        }
+
+        private int compareDisplayNumberParts(String lhs, String rhs) {
+            try {
+                long result = Long.parseLong(lhs) - Long.parseLong(rhs);
+                return result < 0 ? -1 : (result > 0 ? 1 : 0);
+            } catch (NumberFormatException e) {
+                return lhs.compareTo(rhs);
+            }
+        }
+    };
+}
@@ -22,62 +22,255 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.example.android.sampletvinput.R;
+import com.example.android.sampletvinput.xmltv.StringPool;
+import com.example.android.sampletvinput.xmltv.TvListingSnapshot;
 import com.example.android.sampletvinput.xmltv.XmlTvParser;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.BufferedInputStream;
 import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.zip.CRC32;
 
 /**
  * Static helper methods for fetching the channel feed.
  */
 public class RichFeedUtil {
     private static final String TAG = "RichFeedUtil";
+    private static final boolean DEBUG = false;
 
     // A key for the channel display number used in the app link intent from the xmltv_feed.
     public static final String EXTRA_DISPLAY_NUMBER = "display-number";
 
     private static XmlTvParser.TvListing sSampleTvListing;
+    // The tag of the feed which sSampleTvListing was made from.
+    private static String sSampleTvListingTag;
+    private static HttpFeedCache sFeedCache;
 
     private static final boolean USE_LOCAL_XML_FEED = true;
     private static final int URLCONNECTION_CONNECTION_TIMEOUT_MS = 3000;  // 3 sec
     private static final int URLCONNECTION_READ_TIMEOUT_MS = 10000;  // 10 sec
+    private static final int FEED_CHECKSUM_BUFFER_SIZE = 16 * 1024;
+    private static final String SNAPSHOT_FILE_NAME = "rich_tv_listing.snapshot";
+    private static final String FEED_CACHE_DIR_NAME = "feeds";
 
     private RichFeedUtil() {
     }
 
     public static XmlTvParser.TvListing getRichTvListings(Context context) {
-        Uri catalogUri = USE_LOCAL_XML_FEED
+        Uri catalogUri = getCatalogUri(context);
+        if (sSampleTvListing != null) {
+            return sSampleTvListing;
+        }
+
+        String feedTag = null;
+        XmlTvParser.TvListing listing = null;
+        StringPool pool = new StringPool();
+        try (Feed feed = openFeed(context, catalogUri)) {
+            // Reuse the listing parsed by a previous process if the feed hasn't changed since then.
+            feedTag = feed.tag;
+            listing = readSnapshot(context, feedTag);
+            if (listing != null) {
+                setSampleTvListing(listing, feedTag);
+                return listing;
+            }
+            listing = XmlTvParser.parse(feed.inputStream, pool);
+        } catch (IOException e) {
+            Log.e(TAG, "Error in fetching " + catalogUri, e);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Parsed " + catalogUri + " with " + pool);
+        }
+        if (listing != null && feedTag != null) {
+            try {
+                TvListingSnapshot.write(listing, feedTag, getSnapshotFile(context));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write the snapshot of " + catalogUri, e);
+            }
+        }
+        setSampleTvListing(listing, feedTag);
+        return listing;
+    }
+
+    /**
+     * Receives the elements of the feed from {@link #parseRichTvListings}, along with the version
+     * of the feed they come from.
+     */
+    public interface FeedCallback extends XmlTvParser.TvListingCallback {
+        /**
+         * Called before any element of the feed, with a tag which changes whenever the content of
+         * the feed changes, or {@code null} if the version of the feed can't be told.
+         */
+        void onFeedTag(String feedTag);
+    }
+
+    /**
+     * Streams the channels and programs of the feed to {@code callback} while the feed is being
+     * fetched, instead of building a whole {@link XmlTvParser.TvListing} first. The feed is checked
+     * for changes on every call. If the current version of the feed has already been loaded by
+     * {@link #getRichTvListings}, that listing is replayed instead. If a snapshot of it is
+     * available, the snapshot is replayed record by record, so the listing is never held in memory
+     * as a whole. Otherwise a snapshot is written while the feed is streamed.
+     *
+     * @return {@code true} if the whole feed was delivered to {@code callback}.
+     */
+    public static boolean parseRichTvListings(Context context, final FeedCallback callback) {
+        final Uri catalogUri = getCatalogUri(context);
+        try (Feed feed = openFeed(context, catalogUri)) {
+            callback.onFeedTag(feed.tag);
+            XmlTvParser.TvListing listing = getSampleTvListing(feed.tag);
+            if (listing != null) {
+                listing.replay(callback);
+                return true;
+            }
+            if (feed.tag == null) {
+                return XmlTvParser.parse(feed.inputStream, callback);
+            }
+            if (TvListingSnapshot.replay(getSnapshotFile(context), feed.tag, callback)) {
+                return true;
+            }
+            try (final TvListingSnapshot.Writer snapshot = openSnapshotWriter(context, feed.tag)) {
+                if (snapshot == null) {
+                    return XmlTvParser.parse(feed.inputStream, callback);
+                }
+                return XmlTvParser.parse(feed.inputStream, new XmlTvParser.TvListingCallback() {
+                    @Override
+                    public void onChannel(XmlTvParser.XmlTvChannel channel) {
+                        snapshot.onChannel(channel);
+                        callback.onChannel(channel);
+                    }
+
+                    @Override
+                    public void onProgram(XmlTvParser.XmlTvProgram program) {
+                        snapshot.onProgram(program);
+                        callback.onProgram(program);
+                    }
+
+                    @Override
+                    public void onEnd() {
+                        // Commit before the callback does its work, which may take a while.
+                        snapshot.onEnd();
+                        try {
+                            snapshot.commit();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Failed to write the snapshot of " + catalogUri, e);
+                        }
+                        callback.onEnd();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error in fetching " + catalogUri, e);
+        }
+        return false;
+    }
+
+    private static Uri getCatalogUri(Context context) {
+        return USE_LOCAL_XML_FEED
                 ? Uri.parse("android.resource://" + context.getPackageName() + "/"
                         + R.raw.rich_tv_input_xmltv_feed)
                 : Uri.parse(context.getResources().getString(R.string.rich_input_feed_url))
                         .normalizeScheme();
-        if (sSampleTvListing != null) {
-            return sSampleTvListing;
+    }
+
+    private static File getSnapshotFile(Context context) {
+        return new File(context.getCacheDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    private static XmlTvParser.TvListing readSnapshot(Context context, String feedTag) {
+        if (feedTag == null) {
+            return null;
         }
+        return TvListingSnapshot.read(getSnapshotFile(context), feedTag);
+    }
 
-        try (InputStream inputStream = getInputStream(context, catalogUri)) {
-            sSampleTvListing = XmlTvParser.parse(inputStream);
+    private static TvListingSnapshot.Writer openSnapshotWriter(Context context, String feedTag) {
+        try {
+            return new TvListingSnapshot.Writer(getSnapshotFile(context), feedTag);
         } catch (IOException e) {
-            Log.e(TAG, "Error in fetching " + catalogUri, e);
+            Log.w(TAG, "Failed to start the snapshot of " + feedTag, e);
+            return null;
+        }
+    }
+
+    private static synchronized void setSampleTvListing(XmlTvParser.TvListing listing,
+            String feedTag) {
+        sSampleTvListing = listing;
+        sSampleTvListingTag = feedTag;
+    }
+
+    /**
+     * Returns the listing loaded by {@link #getRichTvListings} if it was made from the version of
+     * the feed identified by {@code feedTag}, or {@code null} otherwise.
+     */
+    private static synchronized XmlTvParser.TvListing getSampleTvListing(String feedTag) {
+        return feedTag != null && feedTag.equals(sSampleTvListingTag) ? sSampleTvListing : null;
+    }
+
+    private static synchronized HttpFeedCache getFeedCache(Context context) {
+        if (sFeedCache == null) {
+            sFeedCache = new HttpFeedCache(new File(context.getCacheDir(), FEED_CACHE_DIR_NAME),
+                    URLCONNECTION_CONNECTION_TIMEOUT_MS, URLCONNECTION_READ_TIMEOUT_MS);
+        }
+        return sFeedCache;
+    }
+
+    /**
+     * Opens the feed together with a tag which changes whenever the content of the feed changes,
+     * i.e. the CRC32 checksum of a local feed or the ETag or Last-Modified header of a remote one.
+     */
+    private static Feed openFeed(Context context, Uri uri) throws IOException {
+        if (!isLocalUri(uri)) {
+            HttpFeedCache.Response response = getFeedCache(context).fetch(
+                    new URL(uri.toString()));
+            if (DEBUG) {
+                Log.d(TAG, "Fetched " + uri + (response.isFromCache() ? " from cache" : ""));
+            }
+            return new Feed(new BufferedInputStream(response.getInputStream()),
+                    response.getTag());
+        }
+        CRC32 checksum = new CRC32();
+        try (InputStream inputStream = context.getContentResolver().openInputStream(uri)) {
+            byte[] buffer = new byte[FEED_CHECKSUM_BUFFER_SIZE];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                checksum.update(buffer, 0, len);
+            }
         }
-        return sSampleTvListing;
+        return new Feed(getInputStream(context, uri),
+                "crc32:" + Long.toHexString(checksum.getValue()));
+    }
+
+    private static boolean isLocalUri(Uri uri) {
+        return ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
+                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
+                || ContentResolver.SCHEME_FILE.equals(uri.getScheme());
     }
 
     public static InputStream getInputStream(Context context, Uri uri) throws IOException {
         InputStream inputStream;
-        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
-                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme())
-                || ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+        if (isLocalUri(uri)) {
             inputStream = context.getContentResolver().openInputStream(uri);
         } else {
-            URLConnection urlConnection = new URL(uri.toString()).openConnection();
-            urlConnection.setConnectTimeout(URLCONNECTION_CONNECTION_TIMEOUT_MS);
-            urlConnection.setReadTimeout(URLCONNECTION_READ_TIMEOUT_MS);
-            inputStream = urlConnection.getInputStream();
+            inputStream = getFeedCache(context).fetch(new URL(uri.toString())).getInputStream();
         }
         return new BufferedInputStream(inputStream);
     }
+
+    private static class Feed implements Closeable {
+        final InputStream inputStream;
+        final String tag;
+
+        Feed(InputStream inputStream, String tag) {
+            this.inputStream = inputStream;
+            this.tag = tag;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
 }
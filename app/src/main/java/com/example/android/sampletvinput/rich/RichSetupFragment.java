@@ -208,8 +208,9 @@ public class RichSetupFragment extends DetailsFragment {
                             TvContract.AUTHORITY);
                     boolean syncServiceInProgress = syncActive || syncPending;
                     if (mSyncRequested && mSyncServiceStarted && !syncServiceInProgress) {
-                        // Only current programs are registered at this point. Request a full sync.
-                        SyncUtils.requestSync(mInputId, false);
+                        // Only current programs are registered at this point. Fill the rest of the
+                        // program guide progressively.
+                        SyncUtils.requestProgressiveSync(mInputId);
 
                         getActivity().setResult(Activity.RESULT_OK);
                         getActivity().finish();
@@ -17,18 +17,20 @@
 package com.example.android.sampletvinput.rich;
 
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Point;
 import android.media.tv.TvContentRating;
+import android.media.tv.TvContract;
 import android.media.tv.TvInputManager;
 import android.media.tv.TvInputService;
 import android.media.tv.TvTrackInfo;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.text.TextUtils;
 import android.util.Log;
@@ -42,7 +44,9 @@ import android.view.accessibility.CaptioningManager;
 
 import com.example.android.sampletvinput.R;
 import com.example.android.sampletvinput.TvContractUtils;
+import com.example.android.sampletvinput.data.Channel;
 import com.example.android.sampletvinput.data.Program;
+import com.example.android.sampletvinput.player.PlaybackMetrics;
 import com.example.android.sampletvinput.player.TvInputPlayer;
 import com.example.android.sampletvinput.syncadapter.SyncUtils;
 import com.google.android.exoplayer.ExoPlaybackException;
@@ -51,6 +55,13 @@ import com.google.android.exoplayer.text.CaptionStyleCompat;
 import com.google.android.exoplayer.text.SubtitleLayout;
 import com.google.android.exoplayer.text.Cue;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -63,13 +74,28 @@ import java.util.Set;
  */
 public class RichTvInputService extends TvInputService {
     private static final String TAG = "RichTvInputService";
+    private static final long METRICS_DUMP_INTERVAL_MS = 5 * 60 * 1000;  // 5 minutes
+    private static final String METRICS_FILE_NAME = "playback_metrics.jsonl";
+    private static final long MAX_METRICS_FILE_SIZE = 256 * 1024;
 
     private HandlerThread mHandlerThread;
     private Handler mDbHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private ProgramScheduleCache mScheduleCache;
 
     private List<RichTvInputSessionImpl> mSessions;
     private CaptioningManager mCaptioningManager;
 
+    private final Runnable mDumpMetricsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (RichTvInputSessionImpl session : mSessions) {
+                dumpMetrics(session);
+            }
+            mMainHandler.postDelayed(this, METRICS_DUMP_INTERVAL_MS);
+        }
+    };
+
     private final BroadcastReceiver mParentalControlsBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -87,6 +113,8 @@ public class RichTvInputService extends TvInputService {
         mHandlerThread = new HandlerThread(getClass().getSimpleName());
         mHandlerThread.start();
         mDbHandler = new Handler(mHandlerThread.getLooper());
+        mScheduleCache = new ProgramScheduleCache(getContentResolver(), mDbHandler);
+        mScheduleCache.start();
         mCaptioningManager = (CaptioningManager) getSystemService(Context.CAPTIONING_SERVICE);
 
         setTheme(android.R.style.Theme_Holo_Light_NoActionBar);
@@ -96,17 +124,35 @@ public class RichTvInputService extends TvInputService {
         intentFilter.addAction(TvInputManager.ACTION_BLOCKED_RATINGS_CHANGED);
         intentFilter.addAction(TvInputManager.ACTION_PARENTAL_CONTROLS_ENABLED_CHANGED);
         registerReceiver(mParentalControlsBroadcastReceiver, intentFilter);
+        mMainHandler.postDelayed(mDumpMetricsRunnable, METRICS_DUMP_INTERVAL_MS);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mParentalControlsBroadcastReceiver);
+        mMainHandler.removeCallbacks(mDumpMetricsRunnable);
+        mScheduleCache.release();
+        mScheduleCache = null;
         mHandlerThread.quit();
         mHandlerThread = null;
         mDbHandler = null;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level < TRIM_MEMORY_RUNNING_LOW) {
+            return;
+        }
+        if (mSessions != null) {
+            for (RichTvInputSessionImpl session : mSessions) {
+                session.releaseStandbyPlayers();
+            }
+        }
+        TvInputPlayer.getAllocatorPool().trim();
+    }
+
     @Override
     public final Session onCreateSession(String inputId) {
         RichTvInputSessionImpl session = new RichTvInputSessionImpl(this, inputId);
@@ -115,8 +161,47 @@ public class RichTvInputService extends TvInputService {
         return session;
     }
 
+    /**
+     * Appends the playback metrics of {@code session} to a file in the app's private storage, one
+     * JSON object per line. The file is rotated once it grows too large.
+     */
+    private void dumpMetrics(RichTvInputSessionImpl session) {
+        final JSONObject json = session.getMetrics().toJson();
+        try {
+            json.put("timeMs", System.currentTimeMillis());
+            json.put("inputId", session.mInputId);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        final File file = new File(getFilesDir(), METRICS_FILE_NAME);
+        mDbHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (file.length() > MAX_METRICS_FILE_SIZE) {
+                    file.renameTo(new File(file.getPath() + ".1"));
+                }
+                try (Writer writer = new FileWriter(file, true)) {
+                    writer.write(json.toString());
+                    writer.write('\n');
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write the playback metrics to " + file, e);
+                }
+            }
+        });
+    }
+
     class RichTvInputSessionImpl extends TvInputService.Session implements Handler.Callback {
         private static final int MSG_PLAY_PROGRAM = 1000;
+        private static final int MSG_UPDATE_STANDBY_PLAYERS = 1001;
+        private static final int MSG_PREPARE_NEXT_PROGRAM = 1002;
+        private static final int MSG_SWITCH_TO_NEXT_PROGRAM = 1003;
+        // Standby players are prepared after the tuned program has had time to start.
+        private static final int STANDBY_PLAYER_DELAY_MS = 2000;
+        // How long before the end of the current program the next one starts buffering.
+        private static final long NEXT_PROGRAM_PREPARE_MS = 10000;
+        // Joining a program this late is considered on time, e.g. at a handover to the next
+        // program, where a seek would only cause a rebuffer.
+        private static final long MIN_SEEK_POSITION_MS = 1000;
         private static final float CAPTION_LINE_HEIGHT_RATIO = 0.0533f;
 
         private final Context mContext;
@@ -134,6 +219,12 @@ public class RichTvInputService extends TvInputService {
         private boolean mEpgSyncRequested;
         private final Set<TvContentRating> mUnblockedRatingSet = new HashSet<>();
         private final Handler mHandler;
+        private final StandbyPlayerPool mStandbyPlayers;
+        private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+        private Uri mCurrentChannelUri;
+        // The player which buffers the program after the current one, to switch to at its start.
+        private TvInputPlayer mNextPlayer;
+        private Program mNextProgram;
 
         private final TvInputPlayer.Callback mPlayerCallback = new TvInputPlayer.Callback() {
             private boolean mFirstFrameDrawn;
@@ -195,7 +286,44 @@ public class RichTvInputService extends TvInputService {
             }
         };
 
+        // Drops the next player if it fails before the switch. The current program is then looked
+        // up at the boundary as usual.
+        private final TvInputPlayer.Callback mNextPlayerCallback = new TvInputPlayer.Callback() {
+            @Override
+            public void onPrepared() {
+                // Do nothing.
+            }
+
+            @Override
+            public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+                // Do nothing.
+            }
+
+            @Override
+            public void onPlayWhenReadyCommitted() {
+                // Do nothing.
+            }
+
+            @Override
+            public void onPlayerError(ExoPlaybackException e) {
+                Log.w(TAG, "Failed to prepare the next program " + mNextProgram, e);
+                releaseNextPlayer();
+            }
+
+            @Override
+            public void onDrawnToSurface(Surface surface) {
+                // Do nothing.
+            }
+
+            @Override
+            public void onCues(List<Cue> cues) {
+                // Do nothing.
+            }
+        };
+
         private PlayCurrentProgramRunnable mPlayCurrentProgramRunnable;
+        private PredictProgramsRunnable mPredictProgramsRunnable;
+        private PrepareNextProgramRunnable mPrepareNextProgramRunnable;
 
         protected RichTvInputSessionImpl(Context context, String inputId) {
             super(context);
@@ -206,6 +334,7 @@ public class RichTvInputService extends TvInputService {
             mLastBlockedRating = null;
             mCaptionEnabled = mCaptioningManager.isEnabled();
             mHandler = new Handler(this);
+            mStandbyPlayers = new StandbyPlayerPool(context);
         }
 
         @Override
@@ -214,6 +343,17 @@ public class RichTvInputService extends TvInputService {
                 case MSG_PLAY_PROGRAM:
                     playProgram((Program) msg.obj);
                     return true;
+                case MSG_UPDATE_STANDBY_PLAYERS:
+                    @SuppressWarnings("unchecked")
+                    List<Program> programs = (List<Program>) msg.obj;
+                    mStandbyPlayers.update(programs);
+                    return true;
+                case MSG_PREPARE_NEXT_PROGRAM:
+                    prepareNextProgram((Program) msg.obj);
+                    return true;
+                case MSG_SWITCH_TO_NEXT_PROGRAM:
+                    playProgram((Program) msg.obj);
+                    return true;
             }
             return false;
         }
@@ -222,8 +362,16 @@ public class RichTvInputService extends TvInputService {
         public void onRelease() {
             if (mDbHandler != null) {
                 mDbHandler.removeCallbacks(mPlayCurrentProgramRunnable);
+                mDbHandler.removeCallbacks(mPredictProgramsRunnable);
+                mDbHandler.removeCallbacks(mPrepareNextProgramRunnable);
             }
+            mHandler.removeMessages(MSG_UPDATE_STANDBY_PLAYERS);
+            releaseNextPlayer();
             releasePlayer();
+            mStandbyPlayers.release();
+            if (mDbHandler != null) {
+                dumpMetrics(this);
+            }
             mSessions.remove(this);
         }
 
@@ -262,29 +410,70 @@ public class RichTvInputService extends TvInputService {
         }
 
         private boolean playProgram(Program info) {
-            releasePlayer();
+            TvInputPlayer standbyPlayer = takeNextPlayer(info);
+            if (standbyPlayer == null) {
+                standbyPlayer = mStandbyPlayers.take(info);
+            }
+            long nowMs = System.currentTimeMillis();
+            if (mPlayer != null && mCurrentProgram != null
+                    && mCurrentProgram.getEndTimeUtcMillis() > nowMs) {
+                // The previous channel is likely to be tuned to again, unless its program has
+                // ended, e.g. at a handover to the next program.
+                mPlayer.removeCallback(mPlayerCallback);
+                mPlayer.setMetrics(null);
+                mStandbyPlayers.offer(mCurrentProgram, mPlayer);
+                mPlayer = null;
+            } else {
+                releasePlayer();
+            }
 
             mCurrentProgram = info;
             mCurrentContentRating = (info.getContentRatings() == null
                     || info.getContentRatings().length == 0) ? null : info.getContentRatings()[0];
-            mPlayer = new TvInputPlayer();
-            mPlayer.addCallback(mPlayerCallback);
-            Pair<Integer, String> videoInfo =TvContractUtils.parseProgramInternalProviderData(
-                    info.getInternalProviderData());
-            mPlayer.prepare(RichTvInputService.this, Uri.parse(videoInfo.second), videoInfo.first);
-            mPlayer.setSurface(mSurface);
-            mPlayer.setVolume(mVolume);
+            if (standbyPlayer != null) {
+                mPlayer = standbyPlayer;
+                mPlayer.setMetrics(mMetrics);
+                mPlayer.addCallback(mPlayerCallback);
+                mPlayer.setSurface(mSurface);
+                mPlayer.setVolume(mVolume);
+                if (mPlayer.isPrepared()) {
+                    mPlayerCallback.onPrepared();
+                }
+            } else {
+                mPlayer = new TvInputPlayer();
+                mPlayer.setMetrics(mMetrics);
+                mPlayer.addCallback(mPlayerCallback);
+                Pair<Integer, String> videoInfo = TvContractUtils.parseProgramInternalProviderData(
+                        info.getInternalProviderData());
+                mPlayer.prepare(RichTvInputService.this, Uri.parse(videoInfo.second),
+                        videoInfo.first);
+                mPlayer.setSurface(mSurface);
+                mPlayer.setVolume(mVolume);
+            }
 
-            long nowMs = System.currentTimeMillis();
-            int seekPosMs = (int) (nowMs - info.getStartTimeUtcMillis());
-            // if (seekPosMs > 0) {
-            //     mPlayer.seekTo(seekPosMs);
-            // }
+            // Join the program where it is according to the schedule rather than from the start.
+            long seekPosMs = nowMs - info.getStartTimeUtcMillis();
+            if (seekPosMs > MIN_SEEK_POSITION_MS) {
+                mPlayer.seekTo(seekPosMs);
+            }
             mPlayer.setPlayWhenReady(true);
 
             checkContentBlockNeeded();
+            // Also a fallback for the switch to the next program, in case it doesn't happen.
+            mDbHandler.removeCallbacks(mPlayCurrentProgramRunnable);
             mDbHandler.postDelayed(mPlayCurrentProgramRunnable,
                     info.getEndTimeUtcMillis() - nowMs + 1000);
+            if (mCurrentChannelUri != null) {
+                mDbHandler.removeCallbacks(mPrepareNextProgramRunnable);
+                mPrepareNextProgramRunnable = new PrepareNextProgramRunnable(mCurrentChannelUri);
+                mDbHandler.postDelayed(mPrepareNextProgramRunnable,
+                        info.getEndTimeUtcMillis() - nowMs - NEXT_PROGRAM_PREPARE_MS);
+            }
+            if (mCurrentChannelUri != null) {
+                mDbHandler.removeCallbacks(mPredictProgramsRunnable);
+                mPredictProgramsRunnable = new PredictProgramsRunnable(mCurrentChannelUri);
+                mDbHandler.postDelayed(mPredictProgramsRunnable, STANDBY_PLAYER_DELAY_MS);
+            }
             return true;
         }
 
@@ -297,6 +486,12 @@ public class RichTvInputService extends TvInputService {
             notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
             mUnblockedRatingSet.clear();
 
+            mCurrentChannelUri = channelUri;
+            mMetrics.onTuneStarted();
+            mDbHandler.removeCallbacks(mPrepareNextProgramRunnable);
+            mHandler.removeMessages(MSG_PREPARE_NEXT_PROGRAM);
+            mHandler.removeMessages(MSG_SWITCH_TO_NEXT_PROGRAM);
+            releaseNextPlayer();
             mDbHandler.removeCallbacks(mPlayCurrentProgramRunnable);
             mPlayCurrentProgramRunnable = new PlayCurrentProgramRunnable(channelUri);
             mDbHandler.post(mPlayCurrentProgramRunnable);
@@ -354,6 +549,69 @@ public class RichTvInputService extends TvInputService {
             }
         }
 
+        /**
+         * Starts buffering {@code program} in a paused player, if it follows the current program
+         * without a gap, and schedules the switch to it at its start time. The switch only swaps
+         * the players, so the video continues without going through tuning again.
+         */
+        private void prepareNextProgram(Program program) {
+            if (mCurrentProgram == null
+                    || program.getStartTimeUtcMillis() != mCurrentProgram.getEndTimeUtcMillis()) {
+                return;
+            }
+            releaseNextPlayer();
+            mNextPlayer = StandbyPlayerPool.newStandbyPlayer(mContext, program);
+            if (mNextPlayer == null) {
+                return;
+            }
+            mNextProgram = program;
+            mNextPlayer.addCallback(mNextPlayerCallback);
+            // The lookup of the current program after the boundary is kept as a fallback. It is
+            // rescheduled once the switch has happened.
+            mHandler.sendMessageDelayed(
+                    mHandler.obtainMessage(MSG_SWITCH_TO_NEXT_PROGRAM, program),
+                    Math.max(0, program.getStartTimeUtcMillis() - System.currentTimeMillis()));
+        }
+
+        /**
+         * Returns the player prepared for {@code program} by {@link #prepareNextProgram}, or
+         * {@code null} if there is none or it has failed. Any other next player is released.
+         */
+        private TvInputPlayer takeNextPlayer(Program program) {
+            TvInputPlayer player = null;
+            if (mNextProgram != null && mNextProgram.getProgramId() == program.getProgramId()
+                    && mNextPlayer != null && !mNextPlayer.hasError()) {
+                player = mNextPlayer;
+                player.removeCallback(mNextPlayerCallback);
+                mNextPlayer = null;
+            }
+            releaseNextPlayer();
+            return player;
+        }
+
+        private void releaseNextPlayer() {
+            mHandler.removeMessages(MSG_SWITCH_TO_NEXT_PROGRAM);
+            if (mNextPlayer != null) {
+                mNextPlayer.removeCallback(mNextPlayerCallback);
+                mNextPlayer.setSurface(null);
+                mNextPlayer.stop();
+                mNextPlayer.release();
+                mNextPlayer = null;
+            }
+            mNextProgram = null;
+        }
+
+        /**
+         * Returns the playback metrics of this session.
+         */
+        PlaybackMetrics getMetrics() {
+            return mMetrics;
+        }
+
+        private void releaseStandbyPlayers() {
+            mStandbyPlayers.release();
+        }
+
         private void checkContentBlockNeeded() {
             if (mCurrentContentRating == null || !mTvInputManager.isParentalControlsEnabled()
                     || !mTvInputManager.isRatingBlocked(mCurrentContentRating)
@@ -408,8 +666,8 @@ public class RichTvInputService extends TvInputService {
 
             @Override
             public void run() {
-                ContentResolver resolver = mContext.getContentResolver();
-                Program program = TvContractUtils.getCurrentProgram(resolver, mChannelUri);
+                Program program = mScheduleCache.getCurrentProgram(mChannelUri,
+                        System.currentTimeMillis());
                 if (program != null) {
                     mHandler.removeMessages(MSG_PLAY_PROGRAM);
                     mHandler.obtainMessage(MSG_PLAY_PROGRAM, program).sendToTarget();
@@ -424,5 +682,70 @@ public class RichTvInputService extends TvInputService {
                 }
             }
         }
+
+        /**
+         * Looks up the program which follows the current one on the given channel, so that it can
+         * be buffered before the current one ends.
+         */
+        private class PrepareNextProgramRunnable implements Runnable {
+            private final Uri mChannelUri;
+
+            public PrepareNextProgramRunnable(Uri channelUri) {
+                mChannelUri = channelUri;
+            }
+
+            @Override
+            public void run() {
+                Program program = mScheduleCache.getNextProgram(mChannelUri,
+                        System.currentTimeMillis());
+                if (program != null) {
+                    mHandler.removeMessages(MSG_PREPARE_NEXT_PROGRAM);
+                    mHandler.obtainMessage(MSG_PREPARE_NEXT_PROGRAM, program).sendToTarget();
+                }
+            }
+        }
+
+        /**
+         * Finds the current programs of the channels next to the given one by display number, which
+         * are the most likely to be tuned to next, and prepares standby players for them.
+         */
+        private class PredictProgramsRunnable implements Runnable {
+            private final Uri mChannelUri;
+
+            public PredictProgramsRunnable(Uri channelUri) {
+                mChannelUri = channelUri;
+            }
+
+            @Override
+            public void run() {
+                long channelId = ContentUris.parseId(mChannelUri);
+                List<Channel> channels = mScheduleCache.getChannels(mInputId);
+                int index = -1;
+                for (int i = 0; i < channels.size(); ++i) {
+                    if (channels.get(i).getId() == channelId) {
+                        index = i;
+                        break;
+                    }
+                }
+                List<Program> programs = new ArrayList<>();
+                if (index >= 0 && channels.size() > 1) {
+                    long nowMs = System.currentTimeMillis();
+                    // Channel up first, then channel down.
+                    int[] adjacentIndices = {
+                            (index + 1) % channels.size(),
+                            (index + channels.size() - 1) % channels.size()
+                    };
+                    for (int adjacentIndex : adjacentIndices) {
+                        Program program = mScheduleCache.getCurrentProgram(
+                                TvContract.buildChannelUri(channels.get(adjacentIndex).getId()),
+                                nowMs);
+                        if (program != null) {
+                            programs.add(program);
+                        }
+                    }
+                }
+                mHandler.obtainMessage(MSG_UPDATE_STANDBY_PLAYERS, programs).sendToTarget();
+            }
+        }
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.rich;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.util.Pair;
+
+import com.example.android.sampletvinput.TvContractUtils;
+import com.example.android.sampletvinput.data.Program;
+import com.example.android.sampletvinput.player.TvInputPlayer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps players prepared, but paused and muted without a surface, for the programs which are
+ * likely to be tuned to next, e.g. the ones on the adjacent channels. Tuning to one of them only
+ * needs to attach the surface and start playback, instead of building a new player and waiting
+ * for its first buffer.
+ *
+ * <p>Each standby player buffers up to {@link TvInputPlayer#MAX_BUFFER_SIZE} bytes, so the number
+ * of players is bounded by a share of the memory class of the device. Players for programs which
+ * are no longer predicted are released first. Players which have failed are released as soon as
+ * they are found, and are never handed out.
+ *
+ * <p>This class must be used on the thread on which the players are created.
+ */
+class StandbyPlayerPool {
+    private static final String TAG = "StandbyPlayerPool";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_PLAYER_COUNT = 2;
+    // The share of the memory class which may be used to buffer for standby players.
+    private static final int MEMORY_CLASS_FRACTION = 4;
+
+    private final Context mContext;
+    private final int mMaxPlayerCount;
+    // Ordered from the least to the most recently predicted.
+    private final Map<String, TvInputPlayer> mPlayers = new LinkedHashMap<>();
+
+    StandbyPlayerPool(Context context) {
+        mContext = context;
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long budgetBytes = activityManager.getMemoryClass() * 1024L * 1024L
+                / MEMORY_CLASS_FRACTION;
+        mMaxPlayerCount = (int) Math.min(MAX_PLAYER_COUNT,
+                budgetBytes / TvInputPlayer.MAX_BUFFER_SIZE);
+        if (DEBUG) {
+            Log.d(TAG, "Up to " + mMaxPlayerCount + " standby players");
+        }
+    }
+
+    /**
+     * Returns the standby player prepared for the video of {@code program} and removes it from the
+     * pool, or {@code null} if there is none. The player is paused, muted and has no surface.
+     */
+    TvInputPlayer take(Program program) {
+        TvInputPlayer player = mPlayers.remove(getKey(program));
+        if (player != null && player.hasError()) {
+            releasePlayer(player);
+            player = null;
+        }
+        if (DEBUG) {
+            Log.d(TAG, (player == null ? "Miss " : "Hit ") + program.getTitle());
+        }
+        return player;
+    }
+
+    /**
+     * Keeps {@code player}, which plays the video of {@code program}, as a standby player until
+     * the next {@link #update}. This makes switching back to the previous channel fast as well.
+     * The player counts as the most recently predicted one, so the least recently predicted
+     * players are released if the pool is full.
+     */
+    void offer(Program program, TvInputPlayer player) {
+        if (mMaxPlayerCount == 0 || player.hasError()) {
+            releasePlayer(player);
+            return;
+        }
+        pause(player);
+        TvInputPlayer previous = mPlayers.remove(getKey(program));
+        if (previous != null && previous != player) {
+            releasePlayer(previous);
+        }
+        mPlayers.put(getKey(program), player);
+        for (Iterator<TvInputPlayer> it = mPlayers.values().iterator();
+                mPlayers.size() > mMaxPlayerCount && it.hasNext(); ) {
+            TvInputPlayer eldest = it.next();
+            if (eldest != player) {
+                releasePlayer(eldest);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Prepares players for the given programs, in order of priority, and releases the players of
+     * the programs which aren't predicted anymore.
+     */
+    void update(List<Program> predictedPrograms) {
+        List<String> keys = new ArrayList<>();
+        List<Program> programs = new ArrayList<>();
+        for (Program program : predictedPrograms) {
+            String key = getKey(program);
+            if (key != null && !keys.contains(key) && keys.size() < mMaxPlayerCount) {
+                keys.add(key);
+                programs.add(program);
+            }
+        }
+        for (Iterator<Map.Entry<String, TvInputPlayer>> it = mPlayers.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<String, TvInputPlayer> entry = it.next();
+            if (!keys.contains(entry.getKey()) || entry.getValue().hasError()) {
+                releasePlayer(entry.getValue());
+                it.remove();
+            }
+        }
+        for (int i = 0; i < programs.size(); ++i) {
+            if (mPlayers.containsKey(keys.get(i))) {
+                continue;
+            }
+            TvInputPlayer player = newStandbyPlayer(mContext, programs.get(i));
+            if (player != null) {
+                mPlayers.put(keys.get(i), player);
+            }
+        }
+    }
+
+    /**
+     * Returns a new player which is prepared for the video of {@code program}, but paused and
+     * muted without a surface, or {@code null} if the program has no valid video info. The player
+     * buffers from where the program is now, or from its start if it hasn't started yet.
+     */
+    static TvInputPlayer newStandbyPlayer(Context context, Program program) {
+        Pair<Integer, String> videoInfo;
+        try {
+            videoInfo = TvContractUtils.parseProgramInternalProviderData(
+                    program.getInternalProviderData());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        TvInputPlayer player = new TvInputPlayer();
+        pause(player);
+        player.prepare(context, Uri.parse(videoInfo.second), videoInfo.first);
+        // The player is seeked again when it starts playing.
+        long seekPosMs = System.currentTimeMillis() - program.getStartTimeUtcMillis();
+        if (seekPosMs > 0) {
+            player.seekTo(seekPosMs);
+        }
+        return player;
+    }
+
+    /**
+     * Releases all the standby players.
+     */
+    void release() {
+        for (TvInputPlayer player : mPlayers.values()) {
+            releasePlayer(player);
+        }
+        mPlayers.clear();
+    }
+
+    private static void pause(TvInputPlayer player) {
+        player.setPlayWhenReady(false);
+        player.setVolume(0);
+        player.setSurface(null);
+    }
+
+    private static void releasePlayer(TvInputPlayer player) {
+        player.setSurface(null);
+        player.stop();
+        player.release();
+    }
+
+    /**
+     * Returns the video info of {@code program}, which identifies the stream to prepare.
+     */
+    private static String getKey(Program program) {
+        return TvContractUtils.stripProgramFingerprint(program.getInternalProviderData());
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.syncadapter;
+
+import android.content.ContentProviderOperation;
+import android.media.tv.TvContentRating;
+import android.media.tv.TvContract;
+import android.util.LongSparseArray;
+
+import com.example.android.sampletvinput.TvContractUtils;
+import com.example.android.sampletvinput.data.Program;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the minimal set of TvProvider operations which turn the programs stored for a channel
+ * into the given new programs.
+ *
+ * <p>Every program written by the sync adapter carries a fingerprint of its channel, time slot and
+ * content in {@link TvContract.Programs#COLUMN_INTERNAL_PROVIDER_DATA}. A stored program with the
+ * same fingerprint as a new one is left alone. A stored program in the same time slot as a new one
+ * is updated in place, so that any application specific settings attached to it survive. All the
+ * other new programs are inserted, and the other stored programs within the time range of the new
+ * ones are deleted. Unlike a positional comparison, inserting one program doesn't affect how the
+ * programs after it are matched.
+ */
+class ProgramDiff {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+    private int mInsertCount;
+    private int mUpdateCount;
+    private int mDeleteCount;
+    private int mUnchangedCount;
+
+    /**
+     * @param oldPrograms The programs currently stored for the channel, sorted by start time.
+     * @param newPrograms The programs the channel should have, sorted by start time. They don't
+     *         need to have a fingerprint yet.
+     */
+    ProgramDiff(List<Program> oldPrograms, List<Program> newPrograms) {
+        if (newPrograms.isEmpty()) {
+            return;
+        }
+        long windowStartMs = newPrograms.get(0).getStartTimeUtcMillis();
+        long windowEndMs = newPrograms.get(newPrograms.size() - 1).getEndTimeUtcMillis();
+
+        // Index the stored programs within the window by fingerprint and by start time. The past
+        // programs are left alone. They will be automatically removed by the system.
+        LongSparseArray<Program> oldByFingerprint = new LongSparseArray<>();
+        LongSparseArray<Program> oldByStartTime = new LongSparseArray<>();
+        List<Program> candidates = new ArrayList<>();
+        for (Program program : oldPrograms) {
+            if (program.getEndTimeUtcMillis() <= windowStartMs
+                    || program.getStartTimeUtcMillis() >= windowEndMs) {
+                continue;
+            }
+            candidates.add(program);
+            Long fingerprint = TvContractUtils.getProgramFingerprint(
+                    program.getInternalProviderData());
+            if (fingerprint != null && oldByFingerprint.get(fingerprint) == null) {
+                oldByFingerprint.put(fingerprint, program);
+            }
+            if (oldByStartTime.get(program.getStartTimeUtcMillis()) == null) {
+                oldByStartTime.put(program.getStartTimeUtcMillis(), program);
+            }
+        }
+
+        // Match the new programs, first by identity and then by time slot.
+        LongSparseArray<Program> matched = new LongSparseArray<>();
+        Program[] fingerprinted = new Program[newPrograms.size()];
+        Program[] unchanged = new Program[newPrograms.size()];
+        for (int i = 0; i < newPrograms.size(); ++i) {
+            long fingerprint = getFingerprint(newPrograms.get(i));
+            fingerprinted[i] = withFingerprint(newPrograms.get(i), fingerprint);
+            Program oldProgram = oldByFingerprint.get(fingerprint);
+            if (oldProgram != null && matched.get(oldProgram.getProgramId()) == null) {
+                matched.put(oldProgram.getProgramId(), oldProgram);
+                unchanged[i] = oldProgram;
+                ++mUnchangedCount;
+            }
+        }
+        List<ContentProviderOperation> writes = new ArrayList<>();
+        for (int i = 0; i < newPrograms.size(); ++i) {
+            if (unchanged[i] != null) {
+                continue;
+            }
+            Program newProgram = fingerprinted[i];
+            Program oldProgram = oldByStartTime.get(newProgram.getStartTimeUtcMillis());
+            if (oldProgram != null && matched.get(oldProgram.getProgramId()) == null) {
+                // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There could
+                // be application specific settings which belong to the old program.
+                matched.put(oldProgram.getProgramId(), oldProgram);
+                writes.add(ContentProviderOperation.newUpdate(
+                        TvContract.buildProgramUri(oldProgram.getProgramId()))
+                        .withValues(newProgram.toContentValues())
+                        .build());
+                ++mUpdateCount;
+            } else {
+                writes.add(ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI)
+                        .withValues(newProgram.toContentValues())
+                        .build());
+                ++mInsertCount;
+            }
+        }
+
+        // Whatever is left in the window has been dropped from the feed.
+        for (Program program : candidates) {
+            if (matched.get(program.getProgramId()) == null) {
+                mOperations.add(ContentProviderOperation.newDelete(
+                        TvContract.buildProgramUri(program.getProgramId()))
+                        .build());
+                ++mDeleteCount;
+            }
+        }
+        mOperations.addAll(writes);
+    }
+
+    /**
+     * Returns the operations to apply, deletions first and then updates and insertions in the
+     * order of the new programs.
+     */
+    ArrayList<ContentProviderOperation> getOperations() {
+        return mOperations;
+    }
+
+    int getInsertCount() {
+        return mInsertCount;
+    }
+
+    int getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    int getDeleteCount() {
+        return mDeleteCount;
+    }
+
+    int getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramDiff{inserts=" + mInsertCount + ", updates=" + mUpdateCount
+                + ", deletes=" + mDeleteCount + ", unchanged=" + mUnchangedCount + "}";
+    }
+
+    /**
+     * Returns a copy of {@code program} whose internal provider data is tagged with the
+     * fingerprint of its channel, time slot and content.
+     */
+    static Program withFingerprint(Program program) {
+        return withFingerprint(program, getFingerprint(program));
+    }
+
+    private static Program withFingerprint(Program program, long fingerprint) {
+        return new Program.Builder(program)
+                .setInternalProviderData(TvContractUtils.setProgramFingerprint(
+                        program.getInternalProviderData(), fingerprint))
+                .build();
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of everything {@link Program#toContentValues} writes, except
+     * the fingerprint itself.
+     */
+    static long getFingerprint(Program program) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, program.getChannelId());
+        hash = hash(hash, program.getStartTimeUtcMillis());
+        hash = hash(hash, program.getEndTimeUtcMillis());
+        hash = hash(hash, program.getTitle());
+        hash = hash(hash, program.getEpisodeTitle());
+        hash = hash(hash, program.getSeasonNumber());
+        hash = hash(hash, program.getEpisodeNumber());
+        hash = hash(hash, program.getDescription());
+        hash = hash(hash, program.getLongDescription());
+        hash = hash(hash, program.getVideoWidth());
+        hash = hash(hash, program.getVideoHeight());
+        hash = hash(hash, program.getPosterArtUri());
+        hash = hash(hash, program.getThumbnailUri());
+        String[] genres = program.getCanonicalGenres();
+        hash = hash(hash, genres == null ? 0 : genres.length);
+        if (genres != null) {
+            for (String genre : genres) {
+                hash = hash(hash, genre);
+            }
+        }
+        TvContentRating[] ratings = program.getContentRatings();
+        hash = hash(hash, ratings == null ? 0 : ratings.length);
+        if (ratings != null) {
+            for (TvContentRating rating : ratings) {
+                hash = hash(hash, rating.flattenToString());
+            }
+        }
+        return hash(hash, TvContractUtils.stripProgramFingerprint(
+                program.getInternalProviderData()));
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; ++i) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            // Distinguishes null from the empty string.
+            return hash(hash, -1L);
+        }
+        hash = hash(hash, value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -34,23 +34,50 @@ import android.util.LongSparseArray;
 import com.example.android.sampletvinput.TvContractUtils;
 import com.example.android.sampletvinput.data.Program;
 import com.example.android.sampletvinput.rich.RichFeedUtil;
+import com.example.android.sampletvinput.xmltv.RepeatSchedule;
 import com.example.android.sampletvinput.xmltv.XmlTvParser;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A SyncAdapter implementation which updates program info periodically.
  */
 class SyncAdapter extends AbstractThreadedSyncAdapter {
     public static final String TAG = "SyncAdapter";
+    private static final boolean DEBUG = false;
 
     public static final String BUNDLE_KEY_INPUT_ID = "bundle_key_input_id";
     public static final String BUNDLE_KEY_CURRENT_PROGRAM_ONLY = "bundle_key_current_program_only";
+    public static final String BUNDLE_KEY_SYNC_CONCURRENCY = "bundle_key_sync_concurrency";
+    /**
+     * The index of the tier in {@link #SYNC_TIER_WINDOWS_SEC} to sync. Once a tier has been
+     * synced completely, a sync of the next one is requested.
+     */
+    public static final String BUNDLE_KEY_SYNC_TIER = "bundle_key_sync_tier";
     public static final long FULL_SYNC_FREQUENCY_SEC = 60 * 60 * 24;  // daily
     private static final int FULL_SYNC_WINDOW_SEC = 60 * 60 * 24 * 14;  // 2 weeks
     private static final int SHORT_SYNC_WINDOW_SEC = 60 * 60;  // 1 hour
+    // The windows of a progressive sync, which fills the near future for all the channels first.
+    static final int[] SYNC_TIER_WINDOWS_SEC = {
+            SHORT_SYNC_WINDOW_SEC,
+            60 * 60 * 6,  // 6 hours
+            60 * 60 * 24,  // 1 day
+            FULL_SYNC_WINDOW_SEC
+    };
     private static final int BATCH_OPERATION_COUNT = 100;
+    // A shard covers this many channel runs of the feed for one day of the sync window.
+    private static final int SHARD_CHANNEL_COUNT = 32;
+    private static final long SHARD_DURATION_MS = 24 * 60 * 60 * 1000L;  // 1 day
 
     private final Context mContext;
 
@@ -75,211 +102,560 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
         if (inputId == null) {
             return;
         }
-        XmlTvParser.TvListing listings = RichFeedUtil.getRichTvListings(mContext);
-        LongSparseArray<XmlTvParser.XmlTvChannel> channelMap = TvContractUtils.buildChannelMap(
-                mContext.getContentResolver(), inputId, listings.channels);
         boolean currentProgramOnly = extras.getBoolean(
                 SyncAdapter.BUNDLE_KEY_CURRENT_PROGRAM_ONLY, false);
-        long startMs = System.currentTimeMillis();
-        long endMs = startMs + FULL_SYNC_WINDOW_SEC * 1000;
-        if (currentProgramOnly) {
+        int tier = extras.getInt(BUNDLE_KEY_SYNC_TIER, -1);
+        long windowMs = FULL_SYNC_WINDOW_SEC * 1000L;
+        if (tier >= 0 && tier < SYNC_TIER_WINDOWS_SEC.length) {
+            windowMs = SYNC_TIER_WINDOWS_SEC[tier] * 1000L;
+        } else if (currentProgramOnly) {
             // This is requested from the setup activity, in this case, users don't need to wait for
             // the full sync. Sync the current programs first and do the full sync later in the
             // background.
-            endMs = startMs + SHORT_SYNC_WINDOW_SEC * 1000;
+            windowMs = SHORT_SYNC_WINDOW_SEC * 1000L;
         }
-        for (int i = 0; i < channelMap.size(); ++i) {
-            Uri channelUri = TvContract.buildChannelUri(channelMap.keyAt(i));
-            List<Program> programs = getPrograms(channelUri, channelMap.valueAt(i),
-                    listings.programs, startMs, endMs);
-            updatePrograms(channelUri, programs);
+        // Programs are written channel range by channel range while the feed is still being
+        // parsed, so the whole listing never has to be kept in memory. The schedules and diffs of
+        // the channels are computed in parallel, and written in the order of the feed on this
+        // thread.
+        int concurrency = Math.max(1, extras.getInt(BUNDLE_KEY_SYNC_CONCURRENCY,
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        ProgramUpdateCallback callback = new ProgramUpdateCallback(inputId, windowMs, executor,
+                syncResult);
+        boolean parsed;
+        try {
+            parsed = RichFeedUtil.parseRichTvListings(mContext, callback);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!parsed || callback.isCanceled()) {
+            // A soft error, so that the sync is retried with backoff. A tier is only followed by
+            // the next one once it is complete, so this also keeps a progressive sync going.
+            // A failed shard has already been reported as a database error.
+            syncResult.stats.numIoExceptions++;
+            return;
+        }
+        // Each tier is committed before the next one is requested.
+        if (tier >= 0 && tier + 1 < SYNC_TIER_WINDOWS_SEC.length && callback.isComplete()) {
+            SyncUtils.requestTieredSync(inputId, tier + 1);
         }
     }
 
     /**
      * Returns a list of programs for the given time range.
      *
-     * @param channelUri The channel where the program info will be added.
-     * @param channel The {@link XmlTvParser.XmlTvChannel} for the programs to return.
-     * @param programs The feed fetched from cloud.
+     * @param run The programs of a channel in the feed fetched from cloud.
      * @param startTimeMs The start time of the range requested.
      * @param endTimeMs The end time of the range requested.
      */
-    private List<Program> getPrograms(Uri channelUri, XmlTvParser.XmlTvChannel channel,
-            List<XmlTvParser.XmlTvProgram> programs, long startTimeMs, long endTimeMs) {
+    private List<Program> getPrograms(ChannelRun run, long startTimeMs, long endTimeMs) {
         if (startTimeMs > endTimeMs) {
             throw new IllegalArgumentException();
         }
-        List<XmlTvParser.XmlTvProgram> channelPrograms = new ArrayList<>();
-        for (XmlTvParser.XmlTvProgram program : programs) {
-            if (program.channelId.equals(channel.id)) {
-                channelPrograms.add(program);
-            }
-        }
 
         List<Program> programForGivenTime = new ArrayList<>();
-        if (!channel.repeatPrograms) {
-            for (XmlTvParser.XmlTvProgram program : channelPrograms) {
+        if (!run.channel.repeatPrograms) {
+            for (XmlTvParser.XmlTvProgram program : run.programs) {
                 if (program.startTimeUtcMillis <= endTimeMs
                         && program.endTimeUtcMillis >= startTimeMs) {
-                    programForGivenTime.add(new Program.Builder()
-                                    .setChannelId(ContentUris.parseId(channelUri))
-                                    .setTitle(program.title)
-                                    .setDescription(program.description)
-                                    .setContentRatings(XmlTvParser.xmlTvRatingToTvContentRating(
-                                            program.rating))
-                                    .setCanonicalGenres(program.category)
-                                    .setPosterArtUri(program.icon.src)
-                                    .setInternalProviderData(TvContractUtils.
-                                            convertVideoInfoToInternalProviderData(
-                                                    program.videoType, program.videoSrc))
-                                    .setStartTimeUtcMillis(program.startTimeUtcMillis)
-                                    .setEndTimeUtcMillis(program.endTimeUtcMillis)
-                                    .build()
-                    );
+                    programForGivenTime.add(newProgramBuilder(run.channelUri, program)
+                            .setStartTimeUtcMillis(program.startTimeUtcMillis)
+                            .setEndTimeUtcMillis(program.endTimeUtcMillis)
+                            .build());
                 }
             }
             return programForGivenTime;
         }
 
         // If repeat-programs is on, schedule the programs sequentially in a loop. To make every
-        // device play the same program in a given channel and time, we assumes the loop started
+        // device play the same program in a given channel and time, we assume the loop started
         // from the epoch time.
-        long totalDurationMs = 0;
-        for (XmlTvParser.XmlTvProgram program : channelPrograms) {
-            totalDurationMs += program.getDurationMillis();
-        }
-
-        long programStartTimeMs = startTimeMs - startTimeMs % totalDurationMs;
-        int i = 0;
-        final int programCount = channelPrograms.size();
-        while (programStartTimeMs < endTimeMs) {
-            XmlTvParser.XmlTvProgram programInfo = channelPrograms.get(i++ % programCount);
-            long programEndTimeMs = programStartTimeMs + programInfo.getDurationMillis();
-            if (programEndTimeMs < startTimeMs) {
-                programStartTimeMs = programEndTimeMs;
-                continue;
-            }
-            programForGivenTime.add(new Program.Builder()
-                            .setChannelId(ContentUris.parseId(channelUri))
-                            .setTitle(programInfo.title)
-                            .setDescription(programInfo.description)
-                            .setContentRatings(XmlTvParser.xmlTvRatingToTvContentRating(
-                                    programInfo.rating))
-                            .setCanonicalGenres(programInfo.category)
-                            .setPosterArtUri(programInfo.icon.src)
-                            // NOTE: {@code COLUMN_INTERNAL_PROVIDER_DATA} is a private field where
-                            // TvInputService can store anything it wants. Here, we store video type and
-                            // video URL so that TvInputService can play the video later with this field.
-                            .setInternalProviderData(TvContractUtils.convertVideoInfoToInternalProviderData(
-                                    programInfo.videoType, programInfo.videoSrc))
-                            .setStartTimeUtcMillis(programStartTimeMs)
-                            .setEndTimeUtcMillis(programEndTimeMs)
-                            .build()
-            );
-            programStartTimeMs = programEndTimeMs;
+        for (RepeatSchedule.Slot slot : run.getRepeatSchedule().getSlots(startTimeMs, endTimeMs)) {
+            programForGivenTime.add(new Program.Builder(run.getTemplate(slot.index))
+                    .setStartTimeUtcMillis(slot.startTimeUtcMillis)
+                    .setEndTimeUtcMillis(slot.endTimeUtcMillis)
+                    .build());
         }
         return programForGivenTime;
     }
 
     /**
-     * Updates the system database, TvProvider, with the given programs.
+     * Returns a builder of a program of the given channel with the content of {@code program},
+     * but without a time slot.
+     */
+    private static Program.Builder newProgramBuilder(Uri channelUri,
+            XmlTvParser.XmlTvProgram program) {
+        return new Program.Builder()
+                .setChannelId(ContentUris.parseId(channelUri))
+                .setTitle(program.title)
+                .setDescription(program.description)
+                .setContentRatings(XmlTvParser.xmlTvRatingToTvContentRating(program.rating))
+                .setCanonicalGenres(program.category)
+                .setPosterArtUri(program.icon == null ? null : program.icon.src)
+                // NOTE: {@code COLUMN_INTERNAL_PROVIDER_DATA} is a private field where
+                // TvInputService can store anything it wants. Here, we store video type and video
+                // URL so that TvInputService can play the video later with this field.
+                .setInternalProviderData(TvContractUtils.convertVideoInfoToInternalProviderData(
+                        program.videoType, program.videoSrc));
+    }
+
+    /**
+     * Computes the changes which update the system database, TvProvider, with the given programs.
      *
-     * <p>If there is any overlap between the given and existing programs, the existing ones
-     * will be updated with the given ones if they have the same title or replaced.
+     * <p>Only the differences between the given and existing programs are written, see
+     * {@link ProgramDiff}. Existing programs which are outside of the time range of the given ones
+     * are kept. This only reads TvProvider, so it may run on any thread.
      *
      * @param channelUri The channel where the program info will be added.
      * @param newPrograms A list of {@link Program} instances which includes program
      *         information.
      */
-    private void updatePrograms(Uri channelUri, List<Program> newPrograms) {
-        final int fetchedProgramsCount = newPrograms.size();
-        if (fetchedProgramsCount == 0) {
-            return;
+    private ProgramDiff diffPrograms(Uri channelUri, List<Program> newPrograms) {
+        if (newPrograms.isEmpty()) {
+            return new ProgramDiff(Collections.<Program>emptyList(), newPrograms);
         }
+        // Only the stored programs within the time range of the new ones are compared, and only
+        // the columns the comparison needs are read.
         List<Program> oldPrograms = TvContractUtils.getPrograms(mContext.getContentResolver(),
-                channelUri);
-        Program firstNewProgram = newPrograms.get(0);
-        int oldProgramsIndex = 0;
-        int newProgramsIndex = 0;
-        // Skip the past programs. They will be automatically removed by the system.
-        for (Program program : oldPrograms) {
-            oldProgramsIndex++;
-            if(program.getEndTimeUtcMillis() > firstNewProgram.getStartTimeUtcMillis()) {
-                break;
+                channelUri, newPrograms.get(0).getStartTimeUtcMillis(),
+                newPrograms.get(newPrograms.size() - 1).getEndTimeUtcMillis(),
+                TvContractUtils.DIFF_PROGRAM_PROJECTION);
+        return new ProgramDiff(oldPrograms, newPrograms);
+    }
+
+    /**
+     * Applies the changes computed by {@link #diffPrograms} to TvProvider.
+     *
+     * @param channelUri The channel where the program info will be added.
+     * @param diff The changes to the programs of the channel.
+     * @param syncResult The result where the number of written programs is added to.
+     */
+    private void applyProgramDiff(Uri channelUri, ProgramDiff diff, SyncResult syncResult) {
+        if (DEBUG) {
+            Log.d(TAG, "Updating programs of " + channelUri + ": " + diff);
+        }
+        ArrayList<ContentProviderOperation> ops = diff.getOperations();
+        // Throttle the batch operation not to cause TransactionTooLargeException.
+        for (int i = 0; i < ops.size(); i += BATCH_OPERATION_COUNT) {
+            ArrayList<ContentProviderOperation> batch = new ArrayList<>(
+                    ops.subList(i, Math.min(i + BATCH_OPERATION_COUNT, ops.size())));
+            try {
+                mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, batch);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to insert programs.", e);
+                syncResult.databaseError = true;
+                return;
             }
         }
-        // Compare the new programs with old programs one by one and update/delete the old one or
-        // insert new program if there is no matching program in the database.
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-        while (newProgramsIndex < fetchedProgramsCount) {
-            Program oldProgram = oldProgramsIndex < oldPrograms.size()
-                    ? oldPrograms.get(oldProgramsIndex) : null;
-            Program newProgram = newPrograms.get(newProgramsIndex);
-            boolean addNewProgram = false;
-            if (oldProgram != null) {
-                if (oldProgram.equals(newProgram)) {
-                    // Exact match. No need to update. Move on to the next programs.
-                    oldProgramsIndex++;
-                    newProgramsIndex++;
-                } else if (needsUpdate(oldProgram, newProgram)) {
-                    // Partial match. Update the old program with the new one.
-                    // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There could
-                    // be application specific settings which belong to the old program.
-                    ops.add(ContentProviderOperation.newUpdate(
-                            TvContract.buildProgramUri(oldProgram.getProgramId()))
-                            .withValues(newProgram.toContentValues())
-                            .build());
-                    oldProgramsIndex++;
-                    newProgramsIndex++;
-                } else if (oldProgram.getEndTimeUtcMillis() < newProgram.getEndTimeUtcMillis()) {
-                    // No match. Remove the old program first to see if the next program in
-                    // {@code oldPrograms} partially matches the new program.
-                    ops.add(ContentProviderOperation.newDelete(
-                            TvContract.buildProgramUri(oldProgram.getProgramId()))
-                            .build());
-                    oldProgramsIndex++;
+        syncResult.stats.numInserts += diff.getInsertCount();
+        syncResult.stats.numUpdates += diff.getUpdateCount();
+        syncResult.stats.numDeletes += diff.getDeleteCount();
+        syncResult.stats.numSkippedEntries += diff.getUnchangedCount();
+    }
+
+    /**
+     * Writes the programs of the feed to TvProvider in shards, each of which covers a range of
+     * channels for one day of the sync window.
+     *
+     * <p>XMLTV feeds list all the programs of a channel next to each other, so only the programs of
+     * the channel range being parsed are kept in memory. If the programs of a channel are split up
+     * in the feed, each run of them is written separately. Repeating channels are the exception.
+     * The loop of such a channel is made of all its programs, so they are collected across the
+     * whole feed, and the repeating channels are written last. Their loops are usually short. Once
+     * a range is complete, its shards are written day by day. A shard only covers the runs which
+     * have programs on its day, and the days without any are skipped. So a feed which lists its
+     * programs by time, and is thus split into many small ranges, doesn't compute or checkpoint
+     * every day of every range.
+     *
+     * <p>The schedule and the {@link ProgramDiff} of each channel of a shard are computed on the
+     * given executor, while the resulting operations are applied on the parsing thread in the order
+     * of the feed. Thus the outcome doesn't depend on the number of workers.
+     *
+     * <p>After each shard which changed TvProvider, a {@link SyncCheckpoint} is stored. A sync
+     * which is interrupted is continued by the next sync of the same window, as long as the feed is
+     * still the same version, has the same channels and the checkpoint isn't older than the sync
+     * period. The same feed is split into the same ranges every time, so the ranges and days before
+     * the checkpoint are skipped. A feed whose version can't be told is always written in full.
+     */
+    private class ProgramUpdateCallback implements RichFeedUtil.FeedCallback {
+        private final String mInputId;
+        private final long mWindowMs;
+        private final ExecutorService mExecutor;
+        private final SyncResult mSyncResult;
+        private final List<XmlTvParser.XmlTvChannel> mChannels = new ArrayList<>();
+        // The channel runs of the current channel range.
+        private final List<ChannelRun> mRuns = new ArrayList<>();
+        // All the programs of the repeating channels, in the order of the feed.
+        private final Map<XmlTvParser.XmlTvChannel, List<XmlTvParser.XmlTvProgram>>
+                mRepeatPrograms = new LinkedHashMap<>();
+        private List<XmlTvParser.XmlTvProgram> mPendingPrograms = new ArrayList<>();
+        private Map<String, Long> mChannelRowIds;
+        private Map<String, XmlTvParser.XmlTvChannel> mChannelsById;
+        private String mPendingChannelId;
+        private String mFeedTag;
+        private long mStartMs;
+        private long mEndMs;
+        private int mDayCount;
+        private int mChannelSignature;
+        private int mRangeIndex;
+        // The checkpoint of an earlier sync which this one continues, or null once it has been
+        // caught up with.
+        private SyncCheckpoint mResumeCheckpoint;
+        private boolean mCanceled;
+        // Set once a shard fails, after which no further progress is recorded.
+        private boolean mFailed;
+        private boolean mEnded;
+
+        ProgramUpdateCallback(String inputId, long windowMs, ExecutorService executor,
+                SyncResult syncResult) {
+            mInputId = inputId;
+            mWindowMs = windowMs;
+            mExecutor = executor;
+            mSyncResult = syncResult;
+        }
+
+        @Override
+        public void onFeedTag(String feedTag) {
+            mFeedTag = feedTag;
+        }
+
+        @Override
+        public void onChannel(XmlTvParser.XmlTvChannel channel) {
+            mChannels.add(channel);
+        }
+
+        @Override
+        public void onProgram(XmlTvParser.XmlTvProgram program) {
+            if (!program.channelId.equals(mPendingChannelId)) {
+                flushPendingPrograms();
+                mPendingChannelId = program.channelId;
+            }
+            mPendingPrograms.add(program);
+        }
+
+        @Override
+        public void onEnd() {
+            flushPendingPrograms();
+            syncChannelRange();
+            syncRepeatingChannels();
+            mEnded = true;
+            if (!mCanceled && !mFailed) {
+                SyncCheckpoint.clear(mContext, mInputId, mWindowMs);
+            }
+        }
+
+        /**
+         * Returns {@code true} if the sync has been interrupted before all the shards were
+         * written.
+         */
+        boolean isCanceled() {
+            return mCanceled;
+        }
+
+        /**
+         * Returns {@code true} if all the shards of the sync have been committed.
+         */
+        boolean isComplete() {
+            return mEnded && !mCanceled && !mFailed;
+        }
+
+        private void flushPendingPrograms() {
+            if (mPendingPrograms.isEmpty()) {
+                return;
+            }
+            if (mChannelRowIds == null) {
+                // All the channels precede the programs in XMLTV, so the channel map can be built
+                // once the first program has been parsed.
+                buildChannelRowIds();
+                startOrResume();
+            }
+            Long rowId = mChannelRowIds.get(mPendingChannelId);
+            XmlTvParser.XmlTvChannel channel = mChannelsById.get(mPendingChannelId);
+            if (rowId != null && channel != null && channel.repeatPrograms) {
+                List<XmlTvParser.XmlTvProgram> programs = mRepeatPrograms.get(channel);
+                if (programs == null) {
+                    // The list now belongs to the channel.
+                    mRepeatPrograms.put(channel, mPendingPrograms);
+                    mPendingPrograms = new ArrayList<>();
                 } else {
-                    // No match. The new program does not match any of the old programs. Insert it
-                    // as a new program.
-                    addNewProgram = true;
-                    newProgramsIndex++;
+                    if (DEBUG) {
+                        Log.d(TAG, "The programs of repeating channel " + channel.id
+                                + " are split up in the feed");
+                    }
+                    programs.addAll(mPendingPrograms);
+                    mPendingPrograms.clear();
+                }
+            } else if (rowId != null && channel != null && !mCanceled) {
+                // An earlier run of the same channel must be written before the next one is
+                // diffed against TvProvider.
+                boolean pending = false;
+                for (ChannelRun run : mRuns) {
+                    pending |= run.channel == channel;
+                }
+                if (pending) {
+                    syncChannelRange();
                 }
+                // The list now belongs to the run.
+                mRuns.add(new ChannelRun(TvContract.buildChannelUri(rowId), channel,
+                        mPendingPrograms));
+                mPendingPrograms = new ArrayList<>();
+                if (mRuns.size() >= SHARD_CHANNEL_COUNT) {
+                    syncChannelRange();
+                }
+            } else {
+                mPendingPrograms.clear();
+            }
+        }
+
+        /**
+         * Writes the repeating channels, whose programs have been collected from the whole feed,
+         * in channel ranges of their own.
+         */
+        private void syncRepeatingChannels() {
+            for (Map.Entry<XmlTvParser.XmlTvChannel, List<XmlTvParser.XmlTvProgram>> entry
+                    : mRepeatPrograms.entrySet()) {
+                if (mCanceled) {
+                    break;
+                }
+                XmlTvParser.XmlTvChannel channel = entry.getKey();
+                mRuns.add(new ChannelRun(TvContract.buildChannelUri(
+                        mChannelRowIds.get(channel.id)), channel, entry.getValue()));
+                if (mRuns.size() >= SHARD_CHANNEL_COUNT) {
+                    syncChannelRange();
+                }
+            }
+            syncChannelRange();
+            mRepeatPrograms.clear();
+        }
+
+        /**
+         * Picks the time window of the sync, continuing the one of the last checkpoint if it was
+         * interrupted.
+         */
+        private void startOrResume() {
+            long nowMs = System.currentTimeMillis();
+            mChannelSignature = getChannelSignature(mChannels, mChannelRowIds);
+            SyncCheckpoint checkpoint = SyncCheckpoint.read(mContext, mInputId, mWindowMs);
+            if (checkpoint != null && mFeedTag != null && mFeedTag.equals(checkpoint.feedTag)
+                    && checkpoint.channelSignature == mChannelSignature
+                    && checkpoint.startMs <= nowMs
+                    && nowMs < checkpoint.startMs + FULL_SYNC_FREQUENCY_SEC * 1000) {
+                if (DEBUG) {
+                    Log.d(TAG, "Resuming the sync of " + mInputId + " from " + checkpoint);
+                }
+                mStartMs = checkpoint.startMs;
+                mEndMs = checkpoint.endMs;
+                mResumeCheckpoint = checkpoint;
             } else {
-                // No old programs. Just insert new programs.
-                addNewProgram = true;
-                newProgramsIndex++;
+                mStartMs = nowMs;
+                mEndMs = nowMs + mWindowMs;
+                mResumeCheckpoint = null;
             }
-            if (addNewProgram) {
-                ops.add(ContentProviderOperation
-                        .newInsert(TvContract.Programs.CONTENT_URI)
-                        .withValues(newProgram.toContentValues())
-                        .build());
+            mDayCount = (int) ((mEndMs - mStartMs + SHARD_DURATION_MS - 1) / SHARD_DURATION_MS);
+        }
+
+        /**
+         * Writes the shards of the current channel range, skipping the ones which have been
+         * committed before.
+         */
+        private void syncChannelRange() {
+            if (mRuns.isEmpty()) {
+                return;
             }
-            // Throttle the batch operation not to cause TransactionTooLargeException.
-            if (ops.size() > BATCH_OPERATION_COUNT
-                    || newProgramsIndex >= fetchedProgramsCount) {
+            for (int day = getResumeDay(); day < mDayCount && !mCanceled; ++day) {
+                if (Thread.currentThread().isInterrupted()) {
+                    mCanceled = true;
+                    break;
+                }
+                long startMs = mStartMs + day * SHARD_DURATION_MS;
+                syncShard(day, startMs, Math.min(startMs + SHARD_DURATION_MS, mEndMs));
+            }
+            ++mRangeIndex;
+            mRuns.clear();
+        }
+
+        /**
+         * Returns the first day of the current channel range which hasn't been committed by the
+         * sync this one continues.
+         */
+        private int getResumeDay() {
+            if (mResumeCheckpoint == null) {
+                return 0;
+            }
+            if (mRangeIndex < mResumeCheckpoint.rangeIndex) {
+                return mDayCount;
+            }
+            int day = mResumeCheckpoint.nextDay;
+            if (DEBUG) {
+                Log.d(TAG, "Resuming channel range " + mRangeIndex + " of " + mInputId
+                        + " from day " + day);
+            }
+            mResumeCheckpoint = null;
+            return day;
+        }
+
+        private void syncShard(int day, final long startMs, final long endMs) {
+            List<Future<ChannelUpdate>> updates = new ArrayList<>(mRuns.size());
+            for (final ChannelRun run : mRuns) {
+                if (!run.overlaps(startMs, endMs)) {
+                    continue;
+                }
+                updates.add(mExecutor.submit(new Callable<ChannelUpdate>() {
+                    @Override
+                    public ChannelUpdate call() {
+                        List<Program> programs = getPrograms(run, startMs, endMs);
+                        return new ChannelUpdate(run.channelUri, programs.isEmpty()
+                                ? null : diffPrograms(run.channelUri, programs));
+                    }
+                }));
+            }
+            if (updates.isEmpty()) {
+                return;
+            }
+            SyncResult shardResult = new SyncResult();
+            for (Future<ChannelUpdate> future : updates) {
                 try {
-                    mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
-                } catch (RemoteException | OperationApplicationException e) {
-                    Log.e(TAG, "Failed to insert programs.", e);
+                    ChannelUpdate update = future.get();
+                    if (update.diff != null) {
+                        applyProgramDiff(update.channelUri, update.diff, shardResult);
+                    }
+                } catch (InterruptedException e) {
+                    // The sync has been canceled. The shard isn't committed, so it is written
+                    // again when the sync is resumed.
+                    Thread.currentThread().interrupt();
+                    for (Future<ChannelUpdate> pending : updates) {
+                        pending.cancel(true);
+                    }
+                    mCanceled = true;
                     return;
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed to compute the program updates.", e.getCause());
+                    shardResult.databaseError = true;
                 }
-                ops.clear();
             }
+            if (DEBUG) {
+                Log.d(TAG, "Synced day " + day + " of channel range " + mRangeIndex + " ("
+                        + startMs + "-" + endMs + ") of " + mInputId + ": " + shardResult.stats);
+            }
+            mSyncResult.stats.numInserts += shardResult.stats.numInserts;
+            mSyncResult.stats.numUpdates += shardResult.stats.numUpdates;
+            mSyncResult.stats.numDeletes += shardResult.stats.numDeletes;
+            mSyncResult.stats.numSkippedEntries += shardResult.stats.numSkippedEntries;
+            if (shardResult.databaseError) {
+                mSyncResult.databaseError = true;
+                mFailed = true;
+            }
+            boolean changed = shardResult.stats.numInserts + shardResult.stats.numUpdates
+                    + shardResult.stats.numDeletes > 0;
+            if (!mFailed && changed && mFeedTag != null) {
+                SyncCheckpoint.write(mContext, mInputId, mWindowMs, mStartMs, mEndMs, mFeedTag,
+                        mChannelSignature, mRangeIndex, day + 1);
+            }
+        }
+
+        private void buildChannelRowIds() {
+            mChannelRowIds = new HashMap<>();
+            mChannelsById = new HashMap<>();
+            LongSparseArray<String> unknownChannels = new LongSparseArray<>();
+            LongSparseArray<XmlTvParser.XmlTvChannel> channelMap =
+                    TvContractUtils.buildChannelMap(mContext.getContentResolver(), mInputId,
+                            mChannels, unknownChannels);
+            if (channelMap == null) {
+                return;
+            }
+            for (int i = 0; i < unknownChannels.size(); ++i) {
+                // Their programs are left as they are until the channels are updated.
+                Log.w(TAG, "Channel " + unknownChannels.valueAt(i) + " (row "
+                        + unknownChannels.keyAt(i) + ") isn't in the feed anymore.");
+            }
+            for (int i = 0; i < channelMap.size(); ++i) {
+                XmlTvParser.XmlTvChannel channel = channelMap.valueAt(i);
+                mChannelRowIds.put(channel.id, channelMap.keyAt(i));
+                mChannelsById.put(channel.id, channel);
+            }
+        }
+    }
+
+    /**
+     * Returns a hash of the IDs of the given channels and of the rows they are stored in. Which
+     * channels have a row decides which programs are written, and thus how the feed is split into
+     * channel ranges.
+     */
+    private static int getChannelSignature(List<XmlTvParser.XmlTvChannel> channels,
+            Map<String, Long> rowIds) {
+        int signature = 1;
+        for (XmlTvParser.XmlTvChannel channel : channels) {
+            signature = 31 * signature + channel.id.hashCode();
+            Long rowId = rowIds.get(channel.id);
+            signature = 31 * signature + (rowId == null ? 0 : rowId.hashCode());
         }
+        return signature;
     }
 
     /**
-     * Returns {@code true} if the {@code oldProgram} program needs to be updated with the
-     * {@code newProgram} program.
+     * The programs of a channel which are listed next to each other in the feed, or all the
+     * programs of a repeating channel.
+     *
+     * <p>The schedule of a repeating channel is built once and reused for all the days of the sync
+     * window. A run is only used by one worker at a time.
      */
-    private boolean needsUpdate(Program oldProgram, Program newProgram) {
-        // NOTE: Here, we update the old program if it has the same title and overlaps with the new
-        // program. The test logic is just an example and you can modify this. E.g. check whether
-        // the both programs have the same program ID if your EPG supports any ID for the programs.
-        return oldProgram.getTitle().equals(newProgram.getTitle())
-                && oldProgram.getStartTimeUtcMillis() <= newProgram.getEndTimeUtcMillis()
-                && newProgram.getStartTimeUtcMillis() <= oldProgram.getEndTimeUtcMillis();
+    private static final class ChannelRun {
+        final Uri channelUri;
+        final XmlTvParser.XmlTvChannel channel;
+        final List<XmlTvParser.XmlTvProgram> programs;
+        private final long mStartMs;
+        private final long mEndMs;
+        private RepeatSchedule mRepeatSchedule;
+        // The programs without a time slot, by index in the loop.
+        private Program[] mTemplates;
+
+        ChannelRun(Uri channelUri, XmlTvParser.XmlTvChannel channel,
+                List<XmlTvParser.XmlTvProgram> programs) {
+            this.channelUri = channelUri;
+            this.channel = channel;
+            this.programs = programs;
+            long startMs = Long.MAX_VALUE;
+            long endMs = Long.MIN_VALUE;
+            for (XmlTvParser.XmlTvProgram program : programs) {
+                startMs = Math.min(startMs, program.startTimeUtcMillis);
+                endMs = Math.max(endMs, program.endTimeUtcMillis);
+            }
+            mStartMs = startMs;
+            mEndMs = endMs;
+        }
+
+        /**
+         * Returns {@code true} if the run may have programs in the given time range, which is
+         * always the case for a repeating channel.
+         */
+        boolean overlaps(long startMs, long endMs) {
+            return channel.repeatPrograms || (mStartMs <= endMs && mEndMs >= startMs);
+        }
+
+        RepeatSchedule getRepeatSchedule() {
+            if (mRepeatSchedule == null) {
+                mRepeatSchedule = new RepeatSchedule(programs);
+                mTemplates = new Program[programs.size()];
+            }
+            return mRepeatSchedule;
+        }
+
+        Program getTemplate(int index) {
+            if (mTemplates[index] == null) {
+                mTemplates[index] = newProgramBuilder(channelUri, programs.get(index)).build();
+            }
+            return mTemplates[index];
+        }
+    }
+
+    private static final class ChannelUpdate {
+        final Uri channelUri;
+        final ProgramDiff diff;
+
+        ChannelUpdate(Uri channelUri, ProgramDiff diff) {
+            this.channelUri = channelUri;
+            this.diff = diff;
+        }
     }
 }
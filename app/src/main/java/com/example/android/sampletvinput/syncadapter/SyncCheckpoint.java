@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.syncadapter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The progress of a sharded sync, which is stored so that a sync which is interrupted, e.g.
+ * because the process is killed, can be continued by the next one.
+ *
+ * <p>A sync is identified by its input and the length of its time window, so that syncs of
+ * different lengths keep separate checkpoints. The checkpoint records the time window of the sync,
+ * the tag of the version of the feed it writes, a signature of the channels it covers, the index
+ * of the channel range reached and the first day of that range which hasn't been committed yet.
+ * The ranges before it have been committed completely. The same version of the feed is always
+ * split into the same ranges, so the index identifies the range. Checkpoints are written
+ * synchronously, because the process may be killed right after a shard has been committed.
+ */
+final class SyncCheckpoint {
+    private static final String PREFS_NAME = "sync_checkpoints";
+    private static final String KEY_START_MS = "start_ms";
+    private static final String KEY_END_MS = "end_ms";
+    private static final String KEY_FEED_TAG = "feed_tag";
+    private static final String KEY_CHANNEL_SIGNATURE = "channel_signature";
+    private static final String KEY_RANGE_INDEX = "range_index";
+    private static final String KEY_NEXT_DAY = "next_day";
+
+    final long startMs;
+    final long endMs;
+    final String feedTag;
+    final int channelSignature;
+    final int rangeIndex;
+    final int nextDay;
+
+    private SyncCheckpoint(long startMs, long endMs, String feedTag, int channelSignature,
+            int rangeIndex, int nextDay) {
+        this.startMs = startMs;
+        this.endMs = endMs;
+        this.feedTag = feedTag;
+        this.channelSignature = channelSignature;
+        this.rangeIndex = rangeIndex;
+        this.nextDay = nextDay;
+    }
+
+    /**
+     * Returns the checkpoint of the given sync, or {@code null} if there is none.
+     */
+    static SyncCheckpoint read(Context context, String inputId, long windowMs) {
+        SharedPreferences prefs = getPreferences(context);
+        String prefix = getPrefix(inputId, windowMs);
+        if (!prefs.contains(prefix + KEY_NEXT_DAY)) {
+            return null;
+        }
+        return new SyncCheckpoint(prefs.getLong(prefix + KEY_START_MS, 0),
+                prefs.getLong(prefix + KEY_END_MS, 0),
+                prefs.getString(prefix + KEY_FEED_TAG, null),
+                prefs.getInt(prefix + KEY_CHANNEL_SIGNATURE, 0),
+                prefs.getInt(prefix + KEY_RANGE_INDEX, 0),
+                prefs.getInt(prefix + KEY_NEXT_DAY, 0));
+    }
+
+    /**
+     * Records that the channel ranges before {@code rangeIndex}, and the days before
+     * {@code nextDay} of the range at {@code rangeIndex}, have been committed.
+     */
+    static void write(Context context, String inputId, long windowMs, long startMs, long endMs,
+            String feedTag, int channelSignature, int rangeIndex, int nextDay) {
+        String prefix = getPrefix(inputId, windowMs);
+        getPreferences(context).edit()
+                .putLong(prefix + KEY_START_MS, startMs)
+                .putLong(prefix + KEY_END_MS, endMs)
+                .putString(prefix + KEY_FEED_TAG, feedTag)
+                .putInt(prefix + KEY_CHANNEL_SIGNATURE, channelSignature)
+                .putInt(prefix + KEY_RANGE_INDEX, rangeIndex)
+                .putInt(prefix + KEY_NEXT_DAY, nextDay)
+                .commit();
+    }
+
+    /**
+     * Removes the checkpoint of the given sync once it has been completed.
+     */
+    static void clear(Context context, String inputId, long windowMs) {
+        String prefix = getPrefix(inputId, windowMs);
+        getPreferences(context).edit()
+                .remove(prefix + KEY_START_MS)
+                .remove(prefix + KEY_END_MS)
+                .remove(prefix + KEY_FEED_TAG)
+                .remove(prefix + KEY_CHANNEL_SIGNATURE)
+                .remove(prefix + KEY_RANGE_INDEX)
+                .remove(prefix + KEY_NEXT_DAY)
+                .commit();
+    }
+
+    @Override
+    public String toString() {
+        return "SyncCheckpoint{startMs=" + startMs + ", endMs=" + endMs + ", feedTag=" + feedTag
+                + ", channelSignature=" + channelSignature + ", rangeIndex=" + rangeIndex
+                + ", nextDay=" + nextDay + "}";
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String getPrefix(String inputId, long windowMs) {
+        return inputId + "/" + windowMs + "/";
+    }
+}
@@ -56,4 +56,27 @@ public class SyncUtils {
         ContentResolver.requestSync(DummyAccountService.getAccount(ACCOUNT_TYPE), CONTENT_AUTHORITY,
                 bundle);
     }
+
+    /**
+     * Requests a progressive sync of the programs after the current ones. The program guide is
+     * filled for all the channels tier by tier, the nearest future first, see
+     * {@link SyncAdapter#BUNDLE_KEY_SYNC_TIER}.
+     */
+    public static void requestProgressiveSync(String inputId) {
+        // The first tier is the one of the current programs.
+        requestTieredSync(inputId, 1);
+    }
+
+    /**
+     * Requests a sync of the given tier. Unlike a manual sync, it doesn't ignore the backoff, so a
+     * tier which fails is retried with exponential backoff by the sync manager.
+     */
+    static void requestTieredSync(String inputId, int tier) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_IGNORE_SETTINGS, true);
+        bundle.putString(SyncAdapter.BUNDLE_KEY_INPUT_ID, inputId);
+        bundle.putInt(SyncAdapter.BUNDLE_KEY_SYNC_TIER, tier);
+        ContentResolver.requestSync(DummyAccountService.getAccount(ACCOUNT_TYPE), CONTENT_AUTHORITY,
+                bundle);
+    }
 }
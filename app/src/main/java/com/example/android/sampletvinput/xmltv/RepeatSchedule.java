@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.xmltv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The schedule of a channel which plays its programs in a loop, see
+ * {@link XmlTvParser.XmlTvChannel#repeatPrograms}.
+ *
+ * <p>The loop is assumed to have started at the epoch, so that every device plays the same program
+ * at a given time. The start offsets of the programs within the loop are precomputed, so the
+ * program playing at any time is found by a binary search, and the programs of a time range are
+ * listed in time proportional to their number.
+ *
+ * <p>This class is immutable and thus thread-safe.
+ */
+public final class RepeatSchedule {
+    private final List<XmlTvParser.XmlTvProgram> mPrograms;
+    // mOffsets[i] is the start of program i within the loop, mOffsets[n] the length of the loop.
+    private final long[] mOffsets;
+
+    /**
+     * @param programs The programs in the order in which they are played. Only their durations
+     *         are used. Programs without a positive duration are never scheduled.
+     */
+    public RepeatSchedule(List<XmlTvParser.XmlTvProgram> programs) {
+        mPrograms = new ArrayList<>(programs);
+        mOffsets = new long[programs.size() + 1];
+        for (int i = 0; i < programs.size(); ++i) {
+            mOffsets[i + 1] = mOffsets[i] + Math.max(0, programs.get(i).getDurationMillis());
+        }
+    }
+
+    /**
+     * Returns the length of one loop over all the programs.
+     */
+    public long getLoopDurationMillis() {
+        return mOffsets[mOffsets.length - 1];
+    }
+
+    /**
+     * Returns the slot which is on the air at {@code timeMs}, or {@code null} if there are no
+     * programs to schedule.
+     */
+    public Slot getSlotAt(long timeMs) {
+        long loopDurationMs = getLoopDurationMillis();
+        if (loopDurationMs <= 0) {
+            return null;
+        }
+        long loop = timeMs / loopDurationMs;
+        long offset = timeMs % loopDurationMs;
+        if (offset < 0) {
+            --loop;
+            offset += loopDurationMs;
+        }
+        return newSlot(loop, findProgramAt(offset));
+    }
+
+    /**
+     * Returns the slots which overlap with the given time range, in chronological order.
+     */
+    public List<Slot> getSlots(long startTimeMs, long endTimeMs) {
+        List<Slot> slots = new ArrayList<>();
+        Slot slot = getSlotAt(startTimeMs);
+        while (slot != null && slot.startTimeUtcMillis < endTimeMs) {
+            slots.add(slot);
+            slot = getNextSlot(slot);
+        }
+        return slots;
+    }
+
+    /**
+     * Returns the slot which follows {@code slot}.
+     */
+    public Slot getNextSlot(Slot slot) {
+        long loop = slot.loop;
+        int index = slot.index;
+        do {
+            if (++index == mPrograms.size()) {
+                index = 0;
+                ++loop;
+            }
+        } while (mOffsets[index + 1] == mOffsets[index]);
+        return newSlot(loop, index);
+    }
+
+    private Slot newSlot(long loop, int index) {
+        long loopStartMs = loop * getLoopDurationMillis();
+        return new Slot(loop, index, mPrograms.get(index), loopStartMs + mOffsets[index],
+                loopStartMs + mOffsets[index + 1]);
+    }
+
+    /**
+     * Returns the index of the program which covers {@code offset} within the loop, i.e. the last
+     * program starting at or before it. Programs without a duration are skipped that way.
+     */
+    private int findProgramAt(long offset) {
+        int low = 0;
+        int high = mPrograms.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mOffsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * A program of the loop together with the time when it is on the air.
+     */
+    public static final class Slot {
+        /**
+         * The number of loops which have been completed since the epoch before this slot.
+         */
+        public final long loop;
+        /**
+         * The index of the program in the list given to the schedule.
+         */
+        public final int index;
+        public final XmlTvParser.XmlTvProgram program;
+        public final long startTimeUtcMillis;
+        public final long endTimeUtcMillis;
+
+        Slot(long loop, int index, XmlTvParser.XmlTvProgram program, long startTimeUtcMillis,
+                long endTimeUtcMillis) {
+            this.loop = loop;
+            this.index = index;
+            this.program = program;
+            this.startTimeUtcMillis = startTimeUtcMillis;
+            this.endTimeUtcMillis = endTimeUtcMillis;
+        }
+
+        /**
+         * Returns how far {@code timeMs} is into the program of this slot.
+         */
+        public long getOffsetMillis(long timeMs) {
+            return timeMs - startTimeUtcMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Slot{loop=" + loop + ", index=" + index + ", title=" + program.title
+                    + ", startTimeUtcMillis=" + startTimeUtcMillis + ", endTimeUtcMillis="
+                    + endTimeUtcMillis + "}";
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.xmltv;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A dictionary which makes equal strings share a single instance while a document is parsed.
+ *
+ * <p>Channel IDs, categories, ratings and icon and video URLs repeat many times in an XMLTV feed.
+ * Interning them through a pool keeps only one copy of each value alive after parsing. Unlike
+ * {@link String#intern}, the pool goes away together with the parse which created it. Every value
+ * in the pool stays alive until then, so values which are mostly unique, like program
+ * descriptions, shouldn't be interned.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class StringPool {
+    private final Map<String, String> mStrings = new HashMap<>();
+    private int mHitCount;
+
+    /**
+     * Returns the pooled instance which is equal to {@code value}, adding {@code value} to the pool
+     * if there is no such instance yet.
+     */
+    public String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = mStrings.get(value);
+        if (pooled != null) {
+            ++mHitCount;
+            return pooled;
+        }
+        mStrings.put(value, value);
+        return value;
+    }
+
+    /**
+     * Returns the number of {@link #intern} calls which returned an already pooled instance.
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of distinct strings in the pool.
+     */
+    public int size() {
+        return mStrings.size();
+    }
+
+    @Override
+    public String toString() {
+        return "StringPool{size=" + size() + ", hitCount=" + mHitCount + "}";
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.xmltv;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes a compact binary snapshot of a {@link XmlTvParser.TvListing}, so that a feed
+ * which has not changed doesn't need to be parsed again when the process restarts.
+ *
+ * <p>The snapshot starts with a header holding a magic number, the format version and a tag which
+ * identifies the version of the source feed, e.g. its checksum or HTTP ETag. It is followed by the
+ * channel and program records in the order they were written, and an end marker. Values which
+ * repeat throughout a feed, like channel IDs, categories and URLs, are stored in full the first
+ * time they appear and referred to by index after that. Titles and descriptions are always stored
+ * in full, so that a snapshot can be written while a feed is being streamed without keeping them
+ * all in memory. The file is read through a memory-mapped buffer, and can be replayed record by
+ * record without building the whole listing.
+ */
+public final class TvListingSnapshot {
+    private static final String TAG = "TvListingSnapshot";
+
+    private static final int MAGIC = 0x54564c53;  // "TVLS"
+    private static final int VERSION = 2;
+    private static final int NULL_INDEX = -1;
+    // A string which is stored in full and gets the next index.
+    private static final int NEW_INDEX = -2;
+    // A string which is stored in full and isn't referred to again.
+    private static final int INLINE_INDEX = -3;
+    private static final byte RECORD_CHANNEL = 'C';
+    private static final byte RECORD_PROGRAM = 'P';
+    private static final byte RECORD_END = 'E';
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private TvListingSnapshot() {
+    }
+
+    /**
+     * Returns the listing stored in {@code file}, or {@code null} if the file doesn't exist, was
+     * written by another format version, is corrupted or was made from a different version of the
+     * source feed than {@code feedTag}.
+     */
+    public static XmlTvParser.TvListing read(File file, String feedTag) {
+        XmlTvParser.TvListingBuilder builder = new XmlTvParser.TvListingBuilder();
+        try {
+            return replay(file, feedTag, builder) ? builder.build() : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the snapshot " + file, e);
+        }
+        return null;
+    }
+
+    /**
+     * Reports the channels and programs stored in {@code file} to {@code callback} one by one, as
+     * they are decoded, without building the whole listing.
+     *
+     * @return {@code true} if the listing has been replayed, or {@code false} if nothing has been
+     *         reported because the file doesn't exist, was written by another format version or
+     *         was made from a different version of the source feed than {@code feedTag}.
+     * @throws IOException if the file is found corrupted after some of the listing has been
+     *         reported. The file is deleted then, so that the next attempt falls back to the feed.
+     */
+    public static boolean replay(File file, String feedTag,
+            XmlTvParser.TvListingCallback callback) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        boolean started = false;
+        try (FileInputStream inputStream = new FileInputStream(file);
+                FileChannel channel = inputStream.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Reader reader = new Reader(buffer);
+            if (!reader.readHeader(feedTag)) {
+                return false;
+            }
+            started = true;
+            reader.readRecords(callback);
+            return true;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException
+                | NegativeArraySizeException | IllegalArgumentException e) {
+            if (started) {
+                file.delete();
+                throw new IOException("Failed to replay the snapshot " + file, e);
+            }
+            Log.w(TAG, "Failed to read the snapshot " + file, e);
+        }
+        return false;
+    }
+
+    /**
+     * Writes {@code listing} to {@code file}, tagged with the version of the source feed. The file
+     * is replaced atomically so that a concurrent or interrupted write never leaves a partial
+     * snapshot behind.
+     */
+    public static void write(XmlTvParser.TvListing listing, String feedTag, File file)
+            throws IOException {
+        try (Writer writer = new Writer(file, feedTag)) {
+            listing.replay(writer);
+            writer.commit();
+        }
+    }
+
+    /**
+     * Writes a snapshot from the elements of a listing as they are reported, e.g. while the source
+     * feed is being parsed. The snapshot goes to a temporary file of its own, which replaces the
+     * target file only on {@link #commit}, after the whole listing has been reported. Closing a
+     * writer which hasn't been committed discards the snapshot.
+     *
+     * <p>Errors while writing an element are deferred to {@link #commit}.
+     */
+    public static final class Writer implements XmlTvParser.TvListingCallback, Closeable {
+        private final File mFile;
+        private final File mTempFile;
+        private final DataOutputStream mOut;
+        private final Map<String, Integer> mStringIndices = new HashMap<>();
+        private IOException mError;
+        private boolean mEnded;
+        private boolean mClosed;
+
+        public Writer(File file, String feedTag) throws IOException {
+            mFile = file;
+            mTempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTempFile)));
+            try {
+                mOut.writeInt(MAGIC);
+                mOut.writeInt(VERSION);
+                writeRawString(feedTag);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void onChannel(XmlTvParser.XmlTvChannel channel) {
+            if (mError != null) {
+                return;
+            }
+            try {
+                mOut.writeByte(RECORD_CHANNEL);
+                writeChannel(channel);
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        @Override
+        public void onProgram(XmlTvParser.XmlTvProgram program) {
+            if (mError != null) {
+                return;
+            }
+            try {
+                mOut.writeByte(RECORD_PROGRAM);
+                writeProgram(program);
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        @Override
+        public void onEnd() {
+            if (mError != null) {
+                return;
+            }
+            try {
+                mOut.writeByte(RECORD_END);
+                mEnded = true;
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+
+        /**
+         * Replaces the target file with the snapshot written so far.
+         *
+         * @throws IOException if writing the snapshot failed, or the end of the listing hasn't
+         *         been reported yet.
+         */
+        public void commit() throws IOException {
+            if (mError != null) {
+                throw mError;
+            }
+            if (!mEnded) {
+                throw new IOException("The listing hasn't ended");
+            }
+            mClosed = true;
+            mOut.close();
+            if (!mTempFile.renameTo(mFile)) {
+                mTempFile.delete();
+                throw new IOException("Failed to rename " + mTempFile + " to " + mFile);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Ignore exception. The snapshot is discarded anyway.
+            }
+            mTempFile.delete();
+        }
+
+        private void writeChannel(XmlTvParser.XmlTvChannel channel) throws IOException {
+            writeString(channel.id);
+            writeString(channel.displayName);
+            writeString(channel.displayNumber);
+            writeIcon(channel.icon);
+            mOut.writeBoolean(channel.appLink != null);
+            if (channel.appLink != null) {
+                writeString(channel.appLink.text);
+                mOut.writeBoolean(channel.appLink.color != null);
+                if (channel.appLink.color != null) {
+                    mOut.writeInt(channel.appLink.color);
+                }
+                writeString(channel.appLink.posterUri);
+                writeString(channel.appLink.intentUri);
+                writeIcon(channel.appLink.icon);
+            }
+            mOut.writeInt(channel.originalNetworkId);
+            mOut.writeInt(channel.transportStreamId);
+            mOut.writeInt(channel.serviceId);
+            mOut.writeBoolean(channel.repeatPrograms);
+        }
+
+        private void writeProgram(XmlTvParser.XmlTvProgram program) throws IOException {
+            writeString(program.channelId);
+            writeInlineString(program.title);
+            writeInlineString(program.description);
+            writeIcon(program.icon);
+            mOut.writeInt(program.category.length);
+            for (String category : program.category) {
+                writeString(category);
+            }
+            mOut.writeLong(program.startTimeUtcMillis);
+            mOut.writeLong(program.endTimeUtcMillis);
+            mOut.writeInt(program.rating.length);
+            for (XmlTvParser.XmlTvRating rating : program.rating) {
+                writeString(rating.system);
+                writeString(rating.value);
+            }
+            writeString(program.videoSrc);
+            mOut.writeInt(program.videoType);
+        }
+
+        private void writeIcon(XmlTvParser.XmlTvIcon icon) throws IOException {
+            writeString(icon == null ? null : icon.src);
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                mOut.writeInt(NULL_INDEX);
+                return;
+            }
+            Integer index = mStringIndices.get(value);
+            if (index != null) {
+                mOut.writeInt(index);
+                return;
+            }
+            mStringIndices.put(value, mStringIndices.size());
+            mOut.writeInt(NEW_INDEX);
+            writeRawString(value);
+        }
+
+        private void writeInlineString(String value) throws IOException {
+            if (value == null) {
+                mOut.writeInt(NULL_INDEX);
+                return;
+            }
+            mOut.writeInt(INLINE_INDEX);
+            writeRawString(value);
+        }
+
+        private void writeRawString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF_8);
+            mOut.writeInt(bytes.length);
+            mOut.write(bytes);
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer mBuffer;
+        private final List<String> mStrings = new ArrayList<>();
+        private byte[] mStringBytes = new byte[256];
+
+        Reader(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * Returns {@code true} if the header matches this format version and {@code feedTag}.
+         */
+        boolean readHeader(String feedTag) {
+            return mBuffer.getInt() == MAGIC && mBuffer.getInt() == VERSION
+                    && feedTag.equals(readRawString());
+        }
+
+        void readRecords(XmlTvParser.TvListingCallback callback) {
+            while (true) {
+                byte record = mBuffer.get();
+                if (record == RECORD_CHANNEL) {
+                    callback.onChannel(readChannel());
+                } else if (record == RECORD_PROGRAM) {
+                    callback.onProgram(readProgram());
+                } else if (record == RECORD_END) {
+                    break;
+                } else {
+                    throw new IllegalArgumentException("Invalid record: " + record);
+                }
+            }
+            callback.onEnd();
+        }
+
+        private XmlTvParser.XmlTvChannel readChannel() {
+            String id = readString();
+            String displayName = readString();
+            String displayNumber = readString();
+            XmlTvParser.XmlTvIcon icon = readIcon();
+            XmlTvParser.XmlTvAppLink appLink = null;
+            if (readBoolean()) {
+                String text = readString();
+                Integer color = readBoolean() ? mBuffer.getInt() : null;
+                String posterUri = readString();
+                String intentUri = readString();
+                XmlTvParser.XmlTvIcon appLinkIcon = readIcon();
+                appLink = new XmlTvParser.XmlTvAppLink(text, color, posterUri, intentUri,
+                        appLinkIcon);
+            }
+            int originalNetworkId = mBuffer.getInt();
+            int transportStreamId = mBuffer.getInt();
+            int serviceId = mBuffer.getInt();
+            boolean repeatPrograms = readBoolean();
+            return new XmlTvParser.XmlTvChannel(id, displayName, displayNumber, icon, appLink,
+                    originalNetworkId, transportStreamId, serviceId, repeatPrograms);
+        }
+
+        private XmlTvParser.XmlTvProgram readProgram() {
+            String channelId = readString();
+            String title = readString();
+            String description = readString();
+            XmlTvParser.XmlTvIcon icon = readIcon();
+            String[] category = new String[mBuffer.getInt()];
+            for (int i = 0; i < category.length; ++i) {
+                category[i] = readString();
+            }
+            long startTimeUtcMillis = mBuffer.getLong();
+            long endTimeUtcMillis = mBuffer.getLong();
+            XmlTvParser.XmlTvRating[] rating = new XmlTvParser.XmlTvRating[mBuffer.getInt()];
+            for (int i = 0; i < rating.length; ++i) {
+                String system = readString();
+                String value = readString();
+                rating[i] = new XmlTvParser.XmlTvRating(system, value);
+            }
+            String videoSrc = readString();
+            int videoType = mBuffer.getInt();
+            return new XmlTvParser.XmlTvProgram(channelId, title, description, icon, category,
+                    startTimeUtcMillis, endTimeUtcMillis, rating, videoSrc, videoType);
+        }
+
+        private XmlTvParser.XmlTvIcon readIcon() {
+            String src = readString();
+            return src == null ? null : new XmlTvParser.XmlTvIcon(src);
+        }
+
+        private boolean readBoolean() {
+            return mBuffer.get() != 0;
+        }
+
+        private String readString() {
+            int index = mBuffer.getInt();
+            if (index == NULL_INDEX) {
+                return null;
+            } else if (index == NEW_INDEX) {
+                String value = readRawString();
+                mStrings.add(value);
+                return value;
+            } else if (index == INLINE_INDEX) {
+                return readRawString();
+            }
+            return mStrings.get(index);
+        }
+
+        private String readRawString() {
+            int length = mBuffer.getInt();
+            if (length > mBuffer.remaining()) {
+                throw new IllegalArgumentException("Invalid string length: " + length);
+            }
+            if (mStringBytes.length < length) {
+                mStringBytes = new byte[Math.max(length, mStringBytes.length * 2)];
+            }
+            mBuffer.get(mStringBytes, 0, length);
+            return new String(mStringBytes, 0, length, UTF_8);
+        }
+    }
+}
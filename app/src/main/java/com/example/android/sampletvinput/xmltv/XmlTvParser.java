@@ -30,9 +30,13 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * XMLTV document parser which conforms to http://wiki.xmltv.org/index.php/Main_Page
@@ -110,7 +114,15 @@ public class XmlTvParser {
 
     private static final String ANDROID_TV_RATING = "com.android.tv";
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss Z");
+    private static final long INVALID_TIME = Long.MIN_VALUE;
+
+    private static final Comparator<XmlTvProgram> START_TIME_COMPARATOR =
+            new Comparator<XmlTvProgram>() {
+                @Override
+                public int compare(XmlTvProgram lhs, XmlTvProgram rhs) {
+                    return Long.compare(lhs.startTimeUtcMillis, rhs.startTimeUtcMillis);
+                }
+            };
 
     private XmlTvParser() {
     }
@@ -127,6 +139,40 @@ public class XmlTvParser {
     }
 
     public static TvListing parse(InputStream inputStream) {
+        return parse(inputStream, new StringPool());
+    }
+
+    /**
+     * Same as {@link #parse(InputStream)}, but shares the instances of the repeated values in the
+     * document through the given {@link StringPool}.
+     */
+    public static TvListing parse(InputStream inputStream, StringPool pool) {
+        TvListingBuilder builder = new TvListingBuilder();
+        if (!parse(inputStream, builder, pool)) {
+            return null;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parses the given XMLTV document and reports each channel and program to {@code callback}
+     * as soon as its element is closed, so that the caller can consume the feed while it is still
+     * being read without holding the whole listing in memory.
+     *
+     * @return {@code true} if the whole document was parsed, in which case
+     *         {@link TvListingCallback#onEnd} has been called.
+     */
+    public static boolean parse(InputStream inputStream, TvListingCallback callback) {
+        return parse(inputStream, callback, new StringPool());
+    }
+
+    /**
+     * Same as {@link #parse(InputStream, TvListingCallback)}, but shares the instances of the
+     * repeated values in the document through the given {@link StringPool}. The pool can be
+     * inspected afterwards to see how many duplicates have been dropped.
+     */
+    public static boolean parse(InputStream inputStream, TvListingCallback callback,
+            StringPool pool) {
         try {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(inputStream, null);
@@ -135,31 +181,31 @@ public class XmlTvParser {
                 throw new ParserException(
                         "inputStream does not contain a xml tv description");
             }
-            return parseTvListings(parser);
+            parseTvListings(parser, callback, pool);
+            return true;
         } catch (XmlPullParserException | IOException | ParseException e) {
             e.printStackTrace();
         }
-        return null;
+        return false;
     }
 
-    private static TvListing parseTvListings(XmlPullParser parser)
+    private static void parseTvListings(XmlPullParser parser, TvListingCallback callback,
+            StringPool pool)
             throws IOException, XmlPullParserException, ParseException {
-        List<XmlTvChannel> channels = new ArrayList<>();
-        List<XmlTvProgram> programs = new ArrayList<>();
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_CHANNEL.equalsIgnoreCase(parser.getName())) {
-                channels.add(parseChannel(parser));
+                callback.onChannel(parseChannel(parser, pool));
             }
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_PROGRAM.equalsIgnoreCase(parser.getName())) {
-                programs.add(parseProgram(parser));
+                callback.onProgram(parseProgram(parser, pool));
             }
         }
-        return new TvListing(channels, programs);
+        callback.onEnd();
     }
 
-    private static XmlTvChannel parseChannel(XmlPullParser parser)
+    private static XmlTvChannel parseChannel(XmlPullParser parser, StringPool pool)
             throws IOException, XmlPullParserException {
         String id = null;
         boolean repeatPrograms = false;
@@ -167,7 +213,7 @@ public class XmlTvParser {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_ID.equalsIgnoreCase(attr)) {
-                id = value;
+                id = pool.intern(value);
             } else if (ATTR_REPEAT_PROGRAMS.equalsIgnoreCase(attr)) {
                 repeatPrograms = "TRUE".equalsIgnoreCase(value);
             }
@@ -181,14 +227,14 @@ public class XmlTvParser {
                 if (TAG_DISPLAY_NAME.equalsIgnoreCase(parser.getName())
                         && displayName == null) {
                     // TODO: support multiple display names.
-                    displayName = parser.nextText();
+                    displayName = pool.intern(parser.nextText());
                 } else if (TAG_DISPLAY_NUMBER.equalsIgnoreCase(parser.getName())
                         && displayNumber == null) {
-                    displayNumber = parser.nextText();
+                    displayNumber = pool.intern(parser.nextText());
                 } else if (TAG_ICON.equalsIgnoreCase(parser.getName()) && icon == null) {
-                    icon = parseIcon(parser);
+                    icon = parseIcon(parser, pool);
                 } else if (TAG_APP_LINK.equalsIgnoreCase(parser.getName()) && appLink == null) {
-                    appLink = parseAppLink(parser);
+                    appLink = parseAppLink(parser, pool);
                 }
             } else if (TAG_CHANNEL.equalsIgnoreCase(parser.getName())
                     && parser.getEventType() == XmlPullParser.END_TAG) {
@@ -205,24 +251,24 @@ public class XmlTvParser {
                 fakeOriginalNetworkId, 0, 0, repeatPrograms);
     }
 
-    private static XmlTvProgram parseProgram(XmlPullParser parser)
+    private static XmlTvProgram parseProgram(XmlPullParser parser, StringPool pool)
             throws IOException, XmlPullParserException, ParseException {
         String channelId = null;
-        Long startTimeUtcMillis = null;
-        Long endTimeUtcMillis = null;
+        long startTimeUtcMillis = INVALID_TIME;
+        long endTimeUtcMillis = INVALID_TIME;
         String videoSrc = null;
         int videoType = TvInputPlayer.SOURCE_TYPE_HTTP_PROGRESSIVE;
         for (int i = 0; i < parser.getAttributeCount(); ++i) {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_CHANNEL.equalsIgnoreCase(attr)) {
-                channelId = value;
+                channelId = pool.intern(value);
             } else if (ATTR_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTimeUtcMillis = XmlTvTimeParser.parse(value);
             } else if (ATTR_STOP.equalsIgnoreCase(attr)) {
-                endTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                endTimeUtcMillis = XmlTvTimeParser.parse(value);
             } else if (ATTR_VIDEO_SRC.equalsIgnoreCase(attr)) {
-                videoSrc = value;
+                videoSrc = pool.intern(value);
             } else if (ATTR_VIDEO_TYPE.equalsIgnoreCase(attr)) {
                 if (VALUE_VIDEO_TYPE_HTTP_PROGRESSIVE.equals(value)) {
                     videoType = TvInputPlayer.SOURCE_TYPE_HTTP_PROGRESSIVE;
@@ -243,24 +289,26 @@ public class XmlTvParser {
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
             String tagName = parser.getName();
             if (parser.getEventType() == XmlPullParser.START_TAG) {
+                // Titles and descriptions are hardly ever shared, so they are not pooled. The
+                // pool would otherwise keep them all alive for the whole parse.
                 if (TAG_TITLE.equalsIgnoreCase(parser.getName())) {
                     title = parser.nextText();
                 } else if (TAG_DESC.equalsIgnoreCase(tagName)) {
                     description = parser.nextText();
                 } else if (TAG_ICON.equalsIgnoreCase(tagName)) {
-                    icon = parseIcon(parser);
+                    icon = parseIcon(parser, pool);
                 } else if (TAG_CATEGORY.equalsIgnoreCase(tagName)) {
-                    category.add(parser.nextText());
+                    category.add(pool.intern(parser.nextText()));
                 } else if (TAG_RATING.equalsIgnoreCase(tagName)) {
-                    rating.add(parseRating(parser));
+                    rating.add(parseRating(parser, pool));
                 }
             } else if (TAG_PROGRAM.equalsIgnoreCase(tagName)
                     && parser.getEventType() == XmlPullParser.END_TAG) {
                 break;
             }
         }
-        if (TextUtils.isEmpty(channelId) || startTimeUtcMillis == null
-                || endTimeUtcMillis == null) {
+        if (TextUtils.isEmpty(channelId) || startTimeUtcMillis == INVALID_TIME
+                || endTimeUtcMillis == INVALID_TIME) {
             throw new IllegalArgumentException("channel, start, and end can not be null.");
         }
         return new XmlTvProgram(channelId, title, description, icon,
@@ -268,14 +316,14 @@ public class XmlTvParser {
                 rating.toArray(new XmlTvRating[rating.size()]), videoSrc, videoType);
     }
 
-    private static XmlTvIcon parseIcon(XmlPullParser parser)
+    private static XmlTvIcon parseIcon(XmlPullParser parser, StringPool pool)
             throws IOException, XmlPullParserException {
         String src = null;
         for (int i = 0; i < parser.getAttributeCount(); ++i) {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_SRC.equalsIgnoreCase(attr)) {
-                src = value;
+                src = pool.intern(value);
             }
         }
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
@@ -290,7 +338,7 @@ public class XmlTvParser {
         return new XmlTvIcon(src);
     }
 
-    private static XmlTvAppLink parseAppLink(XmlPullParser parser)
+    private static XmlTvAppLink parseAppLink(XmlPullParser parser, StringPool pool)
             throws IOException, XmlPullParserException {
         String text = null;
         Integer color = null;
@@ -300,13 +348,13 @@ public class XmlTvParser {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_APP_LINK_TEXT.equalsIgnoreCase(attr)) {
-                text = value;
+                text = pool.intern(value);
             } else if (ATTR_APP_LINK_COLOR.equalsIgnoreCase(attr)) {
                 color = Integer.valueOf(Color.parseColor(value));
             } else if (ATTR_APP_LINK_POSTER_URI.equalsIgnoreCase(attr)) {
-                posterUri = value;
+                posterUri = pool.intern(value);
             } else if (ATTR_APP_LINK_INTENT_URI.equalsIgnoreCase(attr)) {
-                intentUri = value;
+                intentUri = pool.intern(value);
             }
         }
 
@@ -314,7 +362,7 @@ public class XmlTvParser {
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_ICON.equalsIgnoreCase(parser.getName()) && icon == null) {
-                icon = parseIcon(parser);
+                icon = parseIcon(parser, pool);
             } else if (TAG_APP_LINK.equalsIgnoreCase(parser.getName())
                 && parser.getEventType() == XmlPullParser.END_TAG) {
                 break;
@@ -324,21 +372,21 @@ public class XmlTvParser {
         return new XmlTvAppLink(text, color, posterUri, intentUri, icon);
     }
 
-    private static XmlTvRating parseRating(XmlPullParser parser)
+    private static XmlTvRating parseRating(XmlPullParser parser, StringPool pool)
             throws IOException, XmlPullParserException {
         String system = null;
         for (int i = 0; i < parser.getAttributeCount(); ++i) {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_SYSTEM.equalsIgnoreCase(attr)) {
-                system = value;
+                system = pool.intern(value);
             }
         }
         String value = null;
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
             if (parser.getEventType() == XmlPullParser.START_TAG) {
                 if (TAG_VALUE.equalsIgnoreCase(parser.getName())) {
-                    value = parser.nextText();
+                    value = pool.intern(parser.nextText());
                 }
             } else if (TAG_RATING.equalsIgnoreCase(parser.getName())
                     && parser.getEventType() == XmlPullParser.END_TAG) {
@@ -351,13 +399,142 @@ public class XmlTvParser {
         return new XmlTvRating(system, value);
     }
 
+    /**
+     * Receives the elements of an XMLTV document in document order while it is being parsed.
+     */
+    public interface TvListingCallback {
+        /**
+         * Called when a {@code <channel>} element has been parsed.
+         */
+        void onChannel(XmlTvChannel channel);
+
+        /**
+         * Called when a {@code <programme>} element has been parsed.
+         */
+        void onProgram(XmlTvProgram program);
+
+        /**
+         * Called once the end of the document has been reached.
+         */
+        void onEnd();
+    }
+
     public static class TvListing {
         public final List<XmlTvChannel> channels;
         public final List<XmlTvProgram> programs;
+        private final Map<String, XmlTvProgram[]> mProgramsByChannel;
 
-        private TvListing(List<XmlTvChannel> channels, List<XmlTvProgram> programs) {
+        private TvListing(List<XmlTvChannel> channels, List<XmlTvProgram> programs,
+                Map<String, XmlTvProgram[]> programsByChannel) {
             this.channels = channels;
             this.programs = programs;
+            mProgramsByChannel = programsByChannel;
+        }
+
+        /**
+         * Returns the programs of the given channel sorted by their start time.
+         */
+        public List<XmlTvProgram> getPrograms(String channelId) {
+            XmlTvProgram[] channelPrograms = mProgramsByChannel.get(channelId);
+            if (channelPrograms == null) {
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableList(Arrays.asList(channelPrograms));
+        }
+
+        /**
+         * Returns the programs of the given channel which overlap with
+         * [{@code startTimeMs}, {@code endTimeMs}), sorted by their start time.
+         *
+         * <p>The programs of a channel are assumed not to overlap with each other, as in any
+         * program guide.
+         */
+        public List<XmlTvProgram> getPrograms(String channelId, long startTimeMs,
+                long endTimeMs) {
+            XmlTvProgram[] channelPrograms = mProgramsByChannel.get(channelId);
+            if (channelPrograms == null || startTimeMs >= endTimeMs) {
+                return Collections.emptyList();
+            }
+            // The first program which ends after the window starts.
+            int low = 0;
+            int high = channelPrograms.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (channelPrograms[mid].endTimeUtcMillis <= startTimeMs) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int fromIndex = low;
+            // The first program which starts at or after the window ends.
+            high = channelPrograms.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (channelPrograms[mid].startTimeUtcMillis < endTimeMs) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return Collections.unmodifiableList(
+                    Arrays.asList(channelPrograms).subList(fromIndex, low));
+        }
+
+        /**
+         * Reports every channel and program of this listing to {@code callback}. The programs are
+         * reported channel by channel, sorted by their start time.
+         */
+        public void replay(TvListingCallback callback) {
+            for (XmlTvChannel channel : channels) {
+                callback.onChannel(channel);
+            }
+            for (XmlTvChannel channel : channels) {
+                for (XmlTvProgram program : getPrograms(channel.id)) {
+                    callback.onProgram(program);
+                }
+            }
+            callback.onEnd();
+        }
+    }
+
+    static class TvListingBuilder implements TvListingCallback {
+        private final List<XmlTvChannel> mChannels = new ArrayList<>();
+        private final List<XmlTvProgram> mPrograms = new ArrayList<>();
+        private final Map<String, List<XmlTvProgram>> mProgramsByChannel = new HashMap<>();
+
+        @Override
+        public void onChannel(XmlTvChannel channel) {
+            mChannels.add(channel);
+        }
+
+        @Override
+        public void onProgram(XmlTvProgram program) {
+            mPrograms.add(program);
+            List<XmlTvProgram> channelPrograms = mProgramsByChannel.get(program.channelId);
+            if (channelPrograms == null) {
+                channelPrograms = new ArrayList<>();
+                mProgramsByChannel.put(program.channelId, channelPrograms);
+            }
+            channelPrograms.add(program);
+        }
+
+        @Override
+        public void onEnd() {
+            // Do nothing.
+        }
+
+        TvListing build() {
+            Map<String, XmlTvProgram[]> programsByChannel = new HashMap<>();
+            for (Map.Entry<String, List<XmlTvProgram>> entry : mProgramsByChannel.entrySet()) {
+                List<XmlTvProgram> channelPrograms = entry.getValue();
+                XmlTvProgram[] sortedPrograms =
+                        channelPrograms.toArray(new XmlTvProgram[channelPrograms.size()]);
+                // Stable, so that programs with the same start time keep the order of the feed.
+                Arrays.sort(sortedPrograms, START_TIME_COMPARATOR);
+                programsByChannel.put(entry.getKey(), sortedPrograms);
+            }
+            return new TvListing(mChannels, mPrograms, programsByChannel);
         }
     }
 
@@ -372,7 +549,7 @@ public class XmlTvParser {
         public final int serviceId;
         public final boolean repeatPrograms;
 
-        private XmlTvChannel(String id, String displayName, String displayNumber, XmlTvIcon icon,
+        XmlTvChannel(String id, String displayName, String displayNumber, XmlTvIcon icon,
                 XmlTvAppLink appLink, int originalNetworkId, int transportStreamId, int serviceId,
                 boolean repeatPrograms) {
             this.id = id;
@@ -399,7 +576,7 @@ public class XmlTvParser {
         public final String videoSrc;
         public final int videoType;
 
-        private XmlTvProgram(String channelId, String title, String description, XmlTvIcon icon,
+        XmlTvProgram(String channelId, String title, String description, XmlTvIcon icon,
                 String[] category, long startTimeUtcMillis, long endTimeUtcMillis,
                 XmlTvRating[] rating, String videoSrc, int videoType) {
             this.channelId = channelId;
@@ -422,7 +599,7 @@ public class XmlTvParser {
     public static class XmlTvIcon {
         public final String src;
 
-        private XmlTvIcon(String src) {
+        XmlTvIcon(String src) {
             this.src = src;
         }
     }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.xmltv;
+
+import java.text.ParseException;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parser for the XMLTV timestamps of the form {@code yyyyMMddHHmmss Z}, e.g.
+ * {@code 20150817000147 +0000}.
+ *
+ * <p>Unlike {@link java.text.SimpleDateFormat}, this works directly on the characters of the
+ * value, does not allocate for numeric time zone offsets and can be used from multiple threads at
+ * the same time. If the time zone is omitted, UTC is assumed as specified by xmltv.dtd. Named time
+ * zones such as {@code GMT} are looked up once and cached.
+ */
+final class XmlTvTimeParser {
+    private static final int DATE_TIME_LENGTH = 14;
+    private static final int NUMERIC_OFFSET_LENGTH = 5;
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private static final ConcurrentHashMap<String, TimeZone> sTimeZones =
+            new ConcurrentHashMap<>();
+
+    private XmlTvTimeParser() {
+    }
+
+    /**
+     * Returns the UTC time in milliseconds represented by the given XMLTV timestamp.
+     *
+     * @throws ParseException if {@code value} is not of the form {@code yyyyMMddHHmmss Z}.
+     */
+    static long parse(String value) throws ParseException {
+        int length = value.length();
+        if (length < DATE_TIME_LENGTH) {
+            throw new ParseException("Invalid XMLTV time: " + value, length);
+        }
+        int year = parseDigits(value, 0, 4);
+        int month = parseDigits(value, 4, 2);
+        int day = parseDigits(value, 6, 2);
+        int hour = parseDigits(value, 8, 2);
+        int minute = parseDigits(value, 10, 2);
+        int second = parseDigits(value, 12, 2);
+        if (month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1]
+                || (month == 2 && day == 29 && !isLeapYear(year))) {
+            throw new ParseException("Invalid XMLTV date: " + value, 4);
+        }
+        if (hour > 23 || minute > 59 || second > 59) {
+            throw new ParseException("Invalid XMLTV time of day: " + value, 8);
+        }
+        long localMillis = daysFromEpoch(year, month, day) * MILLIS_PER_DAY
+                + hour * MILLIS_PER_HOUR + minute * MILLIS_PER_MINUTE + second * MILLIS_PER_SECOND;
+
+        int zoneStart = DATE_TIME_LENGTH;
+        while (zoneStart < length && value.charAt(zoneStart) == ' ') {
+            ++zoneStart;
+        }
+        if (zoneStart == length) {
+            return localMillis;
+        }
+        return localMillis - getOffsetMillis(value, zoneStart, localMillis);
+    }
+
+    private static long getOffsetMillis(String value, int start, long localMillis)
+            throws ParseException {
+        char sign = value.charAt(start);
+        if (sign == '+' || sign == '-') {
+            if (value.length() - start != NUMERIC_OFFSET_LENGTH) {
+                throw new ParseException("Invalid XMLTV time zone offset: " + value, start);
+            }
+            int hours = parseDigits(value, start + 1, 2);
+            int minutes = parseDigits(value, start + 3, 2);
+            if (minutes > 59) {
+                throw new ParseException("Invalid XMLTV time zone offset: " + value, start);
+            }
+            long offsetMillis = hours * MILLIS_PER_HOUR + minutes * MILLIS_PER_MINUTE;
+            return sign == '-' ? -offsetMillis : offsetMillis;
+        }
+        TimeZone timeZone = getTimeZone(value.substring(start));
+        if (timeZone == null) {
+            throw new ParseException("Unknown XMLTV time zone: " + value, start);
+        }
+        return timeZone.getOffset(localMillis - timeZone.getRawOffset());
+    }
+
+    private static TimeZone getTimeZone(String id) {
+        TimeZone timeZone = sTimeZones.get(id);
+        if (timeZone == null) {
+            timeZone = TimeZone.getTimeZone(id);
+            // TimeZone falls back to GMT for the IDs it doesn't know.
+            if (!id.equals(timeZone.getID()) && "GMT".equals(timeZone.getID())) {
+                return null;
+            }
+            sTimeZones.putIfAbsent(id, timeZone);
+        }
+        return timeZone;
+    }
+
+    private static int parseDigits(String value, int start, int count) throws ParseException {
+        int result = 0;
+        for (int i = start; i < start + count; ++i) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new ParseException("Invalid XMLTV time: " + value, i);
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the given date in the proleptic Gregorian
+     * calendar.
+     */
+    private static long daysFromEpoch(int year, int month, int day) {
+        // Count the years from March so that the leap day is the last day of the year.
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}